@@ -0,0 +1,255 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+* The BatchAnalyzer class analyzes positions offline in bulk, e.g. those of archived
+* games, with the bot's search and the endgame solver. It reads one position per
+* line, either as the columns (1 - 7) played from the empty board, or as the 42
+* cells of the board from the top row down ('.', 'X' or 'O', '/' between rows
+* allowed). Empty lines and lines starting with '#' are skipped.
+*
+* For every position it writes one tab-separated line, in the order of the input:
+* the position, the side to move, the best move, the search score from the side to
+* move's point of view, the depth searched and, when the endgame solver finished,
+* the exact result such as "win in 7" ("?" otherwise).
+*
+* java BatchAnalyzer <input file> <output file> [--depth=10] [--ms=1000] [--solve-cells=20]
+*                    [--solve-ms=10000] [--threads=4] [--tt-kb=256]
+*
+* Positions are analyzed on --threads threads at once (default: one per core), each
+* with a search of --depth moves ahead within --ms milliseconds, solved to the end
+* within --solve-ms once at most --solve-cells cells are empty. Only a few hundred
+* positions are held in memory at a time, so inputs of any size stream through.
+*/
+
+public class BatchAnalyzer {
+	// positions read but not written yet, per thread
+	static final int PENDING_PER_THREAD = 64;
+	static final Task END = new Task(null);
+
+	int depth = Game.MAX_BOT_LEVEL;
+	long budgetNanos = 1000 * 1000000L;
+	int solveCells = 20;
+	long solveNanos = 10000 * 1000000L;
+	int threads = Runtime.getRuntime().availableProcessors();
+	IOException readError;
+
+	/**
+	 * One input line and, once analyzed, its output line.
+	 */
+	static class Task {
+		String input;
+		boolean invalid; // the line is no position
+		final CompletableFuture<String> result = new CompletableFuture<String>();
+
+		Task(String initInput) {
+			input = initInput;
+		}
+	}
+
+	public static void main(String[] argv) throws Exception {
+		BatchAnalyzer analyzer = new BatchAnalyzer();
+		String inputFile = null;
+		String outputFile = null;
+		for (String arg : argv) {
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("--depth=")) {
+				analyzer.depth = Integer.parseInt(value);
+			} else if (arg.startsWith("--ms=")) {
+				analyzer.budgetNanos = Long.parseLong(value) * 1000000L;
+			} else if (arg.startsWith("--solve-cells=")) {
+				analyzer.solveCells = Integer.parseInt(value);
+			} else if (arg.startsWith("--solve-ms=")) {
+				analyzer.solveNanos = Long.parseLong(value) * 1000000L;
+			} else if (arg.startsWith("--threads=")) {
+				analyzer.threads = Math.max(1, Integer.parseInt(value));
+			} else if (arg.startsWith("--tt-kb=")) {
+				TranspositionTable.configure(Integer.parseInt(value));
+			} else if (arg.startsWith("--")) {
+				System.out.println("Unknown option: " + arg);
+			} else if (inputFile == null) {
+				inputFile = arg;
+			} else {
+				outputFile = arg;
+			}
+		}
+		if (outputFile == null) {
+			System.out.println("Usage: java BatchAnalyzer <input file> <output file> [--depth=10] [--ms=1000]"
+					+ " [--solve-cells=20] [--solve-ms=10000] [--threads=4] [--tt-kb=256]");
+			return;
+		}
+		analyzer.run(inputFile, outputFile);
+	}
+
+	/**
+	 * Analyze every position of the input file. A reader thread feeds the analyzing
+	 * threads through a bounded queue, and this thread writes the results in input
+	 * order as they complete; the reader waits whenever the writer falls behind.
+	 */
+	void run(String inputFile, String outputFile) throws Exception {
+		BlockingQueue<Task> work = new ArrayBlockingQueue<Task>(threads * PENDING_PER_THREAD);
+		BlockingQueue<Task> order = new ArrayBlockingQueue<Task>(threads * PENDING_PER_THREAD);
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(() -> work(work), "analyzer-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+		Thread reader = new Thread(() -> read(inputFile, work, order), "analyzer-reader");
+		reader.setDaemon(true);
+		reader.start();
+
+		long start = System.nanoTime();
+		long count = 0;
+		long errors = 0;
+		try (BufferedWriter out = Files.newBufferedWriter(Paths.get(outputFile), StandardCharsets.UTF_8)) {
+			out.write("# position\tturn\tbest\tscore\tdepth\tresult\n");
+			for (Task task = order.take(); task != END; task = order.take()) {
+				String line = task.result.join();
+				out.write(line);
+				out.write('\n');
+				count++;
+				if (task.invalid)
+					errors++;
+				if (count % 10000 == 0)
+					System.out.println(count + " positions analyzed, " + rate(count, start) + " per second");
+			}
+		}
+		if (readError != null)
+			throw readError;
+		System.out.println("Analyzed " + count + " positions (" + errors + " not positions) in "
+				+ String.format("%.1f", (System.nanoTime() - start) / 1e9) + " s, " + rate(count, start) + " per second");
+	}
+
+	private static String rate(long count, long start) {
+		return String.format("%.1f", count * 1e9 / (System.nanoTime() - start));
+	}
+
+	private void read(String inputFile, BlockingQueue<Task> work, BlockingQueue<Task> order) {
+		try (BufferedReader in = Files.newBufferedReader(Paths.get(inputFile), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				Task task = new Task(line);
+				// queued for the writer first, so that it is written in input order
+				order.put(task);
+				work.put(task);
+			}
+		} catch (IOException e) {
+			readError = e;
+		} catch (InterruptedException e) {
+			return;
+		}
+		try {
+			order.put(END);
+			for (int i = 0; i < threads; i++)
+				work.put(END);
+		} catch (InterruptedException e) {
+			return;
+		}
+	}
+
+	/**
+	 * Analyze positions until the input ends. Every thread keeps its own board and table.
+	 */
+	private void work(BlockingQueue<Task> work) {
+		Game game = new Game();
+		try {
+			for (Task task = work.take(); task != END; task = work.take()) {
+				try {
+					task.result.complete(analyze(game, task));
+				} catch (RuntimeException e) {
+					task.invalid = true;
+					task.result.complete(task.input + "\t-\t-\t-\t-\t" + e);
+				}
+			}
+		} catch (InterruptedException e) {
+			return;
+		}
+	}
+
+	/**
+	 * Analyze one position.
+	 * @return the output line
+	 */
+	String analyze(Game game, Task task) {
+		String input = task.input;
+		String error = setUp(game, input);
+		if (error != null) {
+			task.invalid = true;
+			return input + "\t-\t-\t-\t-\t" + error;
+		}
+		String turn = (game.moves & 1) == 0 ? "X" : "O";
+		if (game.variant.isAlignment(game.position ^ game.mask))
+			return input + "\t" + turn + "\t-\t-\t-\tover, " + ((game.moves & 1) == 0 ? "O" : "X") + " won";
+		if (game.isTie())
+			return input + "\t" + turn + "\t-\t-\t-\tover, draw";
+
+		int sign = (game.moves & 1) == 0 ? 1 : -1;
+		int score = sign * game.iterativeSearch(depth, budgetNanos, Long.MAX_VALUE);
+		int best = game.bestMove;
+		String result = "?";
+		if (Game.ROWS * Game.COLS - game.moves <= solveCells) {
+			EndgameSolver solver = game.variant.solvers.get();
+			if (solver.solve(game, System.nanoTime() + solveNanos)) {
+				best = solver.bestMove;
+				result = solver.describe();
+			}
+		}
+		return input + "\t" + turn + "\t" + (best + 1) + "\t" + score + "\t" + game.depthReached + "\t" + result;
+	}
+
+	/**
+	 * Set the game to the position of an input line.
+	 * @return null, or why the line is not a position
+	 */
+	static String setUp(Game game, String input) {
+		game.start(true);
+		String cells = input.replace("/", "").replace(" ", "");
+		if (cells.indexOf('.') >= 0 || cells.indexOf('X') >= 0 || cells.indexOf('O') >= 0
+				|| cells.indexOf('x') >= 0 || cells.indexOf('o') >= 0) {
+			if (cells.length() != Game.ROWS * Game.COLS)
+				return "not " + Game.ROWS * Game.COLS + " cells";
+			long x = 0;
+			long o = 0;
+			for (int i = 0; i < cells.length(); i++) {
+				long cell = 1L << (i % Game.COLS * Game.STRIDE + Game.ROWS - 1 - i / Game.COLS);
+				char c = Character.toUpperCase(cells.charAt(i));
+				if (c == 'X')
+					x |= cell;
+				else if (c == 'O')
+					o |= cell;
+				else if (c != '.')
+					return "bad cell '" + cells.charAt(i) + "'";
+			}
+			if (!game.setTokens(x, o))
+				return "not a position";
+			// the side to move cannot have four in a row: the game would have ended before
+			if (game.variant.isAlignment(game.position))
+				return "not a position";
+			return null;
+		}
+		for (int i = 0; i < input.length(); i++) {
+			char c = input.charAt(i);
+			if (c == ',' || c == ' ')
+				continue;
+			int col = c - '1';
+			if (col < 0 || col >= Game.COLS)
+				return "bad column '" + c + "'";
+			if (game.variant.isAlignment(game.position ^ game.mask))
+				return "move after the end of the game";
+			if (!game.canPlay(col))
+				return "column " + (col + 1) + " is full";
+			game.placeToken(col);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,117 @@
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+* The BinaryProtocol class encodes the messages the server sends to a client that
+* asked for the binary protocol. The client asks by answering the HUMAN_COMP greeting
+* with a REQUEST line; the server then sends the greeting again and every later
+* message as a frame. What the client sends stays text lines.
+*
+* A frame is a 2-byte length, then that many bytes: a type and its payload. The
+* protocol keywords are frames without a payload, other messages are TEXT frames,
+* and instead of the board the server sends MOVES frames with only the columns
+* played since the client's last board and the state of the game. The client
+* keeps its own board and renders it. Spectators get BOARD frames instead, with
+* every move of the game, so that they can skip boards.
+*/
+
+public class BinaryProtocol {
+	static final String REQUEST = "BINARY";
+
+	// frame types
+	static final int HUMAN_COMP = 1;
+	static final int BOT_LEVEL = 2;
+	static final int WAIT_FOR_OPPONENT = 3;
+	static final int YOUR_NAME = 4;
+	static final int DUPLICATE_NAME = 5;
+	static final int YOUR_MOVE = 6;
+	static final int INVALID_MOVE = 7;
+	static final int END_GAME = 8;
+	static final int DISCONNECT = 9;
+	static final int TEXT = 10; // payload: the message in UTF-8, without the newline
+	static final int MOVES = 11; // payload: the game state, then one column (counted from 0) per move
+	static final int PICK_GAME = 12;
+	static final int BOARD = 13; // payload: the game state, rows and columns, then every move of the game
+
+	// game states in a MOVES frame
+	static final int PLAYING = 0;
+	static final int WIN = 1;
+	static final int TIE = 2;
+
+	static final int MAX_FRAME = 0xffff;
+
+	// frames of the protocol keywords, encoded once
+	private static final HashMap<String, byte[]> keywords = new HashMap<String, byte[]>();
+
+	static {
+		String[] messages = { null, Player.HUMAN_COMP, Player.BOT_LEVEL, Player.WAIT_FOR_OPPONENT, Player.YOUR_NAME,
+				Player.DUPLICATE_NAME, Player.YOUR_MOVE, Player.INVALID_MOVE, Player.END_GAME, Player.DISCONNECT };
+		for (int type = HUMAN_COMP; type <= DISCONNECT; type++)
+			keywords.put(messages[type], new byte[] { 0, 1, (byte) type });
+		keywords.put(Player.PICK_GAME, new byte[] { 0, 1, PICK_GAME });
+	}
+
+	/**
+	 * Encode a text protocol message (a keyword or a line ending in a newline) as a frame.
+	 * Keyword frames are shared and must not be changed.
+	 */
+	static byte[] encodeMessage(String message) {
+		byte[] keyword = keywords.get(message);
+		if (keyword != null)
+			return keyword;
+		if (message.endsWith("\n"))
+			message = message.substring(0, message.length() - 1);
+		byte[] text = message.getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(text.length, MAX_FRAME - 1);
+		byte[] frame = new byte[3 + length];
+		frame[0] = (byte) ((length + 1) >> 8);
+		frame[1] = (byte) (length + 1);
+		frame[2] = TEXT;
+		System.arraycopy(text, 0, frame, 3, length);
+		return frame;
+	}
+
+	/**
+	 * Encode the moves history[from] to history[to - 1] and the state of the game as one frame.
+	 */
+	static byte[] encodeMoves(int[] history, int from, int to, int state) {
+		return encode(MOVES, history, from, to, state, 0);
+	}
+
+	/**
+	 * Encode the board of a game, every move of it, and its state as one frame.
+	 */
+	static byte[] encodeBoard(Game game) {
+		byte[] frame = encode(BOARD, game.history, 0, game.moves, stateOf(game), 2);
+		frame[4] = (byte) game.variant.rows;
+		frame[5] = (byte) game.variant.cols;
+		return frame;
+	}
+
+	/**
+	 * Encode a frame of the given type: the state, room for a header of the given
+	 * length, then the moves history[from] to history[to - 1].
+	 */
+	private static byte[] encode(int type, int[] history, int from, int to, int state, int header) {
+		int length = 2 + header + to - from;
+		byte[] frame = new byte[2 + length];
+		frame[0] = (byte) (length >> 8);
+		frame[1] = (byte) length;
+		frame[2] = (byte) type;
+		frame[3] = (byte) state;
+		for (int i = from; i < to; i++)
+			frame[4 + header + i - from] = (byte) history[i];
+		return frame;
+	}
+
+	/**
+	 * State of a game for MOVES and BOARD frames, after its last move.
+	 */
+	static int stateOf(Game game) {
+		if (game.moves > 0 && game.isWin(game.history[game.moves - 1]))
+			return WIN;
+		if (game.isTie())
+			return TIE;
+		return PLAYING;
+	}
+}
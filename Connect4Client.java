@@ -23,30 +23,84 @@ class Connect4Client {
   static final String BOT_LEVEL = "BOT_LEVEL";
   static final String DISCONNECT = "DISCONNECT";
   static final String SERVER_IP_ADDRESS = "127.0.0.1";
+  static final String BINARY = "BINARY";
+  static final String PICK_GAME = "PICK_GAME";
+
+  // frame types of the binary protocol, see BinaryProtocol on the server
+  static final String[] FRAME_KEYWORDS = { null, HUMAN_COMP, BOT_LEVEL, WAIT_FOR_OPPONENT, YOUR_NAME,
+    DUPLICATE_NAME, YOUR_MOVE, INVALID_MOVE, END_GAME, DISCONNECT, null, null, PICK_GAME };
+  static final int TEXT = 10;
+  static final int MOVES = 11;
+  static final int BOARD = 13;
+
+  // the board picked with the game mode
+  static int rows = 6;
+  static int cols = 7;
+
+  // the board rendered by the client in binary mode: 0 empty, 1 X, 2 O, rows counted from the top
+  static int[][] board = new int[rows][cols];
+  static int moveCount = 0;
 
   public static void main(String argv[]) throws Exception
   {
-    
+    // Pass --binary to receive compact frames instead of the text protocol, and the server's address
+    // to play on another machine than SERVER_IP_ADDRESS
+    boolean binary = false;
+    String serverAddress = SERVER_IP_ADDRESS;
+    for (String arg : argv) {
+      if (arg.equals("--binary")) {
+        binary = true;
+      } else {
+        serverAddress = arg;
+      }
+    }
+
     // Read input from the console/terminal
     BufferedReader inFromUser = new BufferedReader(new InputStreamReader(System.in));
 
-    Socket clientSocket = new Socket(SERVER_IP_ADDRESS, 6789);
+    Socket clientSocket = new Socket(serverAddress, 6789);
+    // send each line right away instead of holding its last bytes back for the server's acknowledgement
+    clientSocket.setTcpNoDelay(true);
 
     DataOutputStream outToServer = new DataOutputStream(clientSocket.getOutputStream());
 
-    BufferedReader inFromServer =new BufferedReader(new InputStreamReader(
-      clientSocket.getInputStream()));
+    BufferedReader inFromServer = null;
+    DataInputStream framesFromServer = null;
+    if (binary) {
+      // Ask for the binary protocol, then skip the text greeting: the server repeats it in a frame
+      outToServer.writeBytes(BINARY + "\n");
+      framesFromServer = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+      int greeting;
+      while ((greeting = framesFromServer.read()) != '\n') {
+        if (greeting == -1) {
+          System.out.println("The server closed the connection.");
+          clientSocket.close();
+          System.exit(1);
+        }
+      }
+    } else {
+      inFromServer = new BufferedReader(new InputStreamReader(
+        clientSocket.getInputStream()));
+    }
 
     while (true) {
-      String sentence = inFromServer.readLine();
-      if (sentence.equals(HUMAN_COMP)) {
-        // Ask the player to choose between two modes: with another player or with the AI Connecto-bot
-        System.out.println("Which mode do you want to play? (Type 1 or 2)");
+      String sentence = binary ? readFrame(framesFromServer) : inFromServer.readLine();
+      if (sentence == null) {
+        // The server closed the connection, e.g. because it shut down
+        System.out.println("The server closed the connection. Ending the game...");
+        break;
+
+      } else if (sentence.equals(HUMAN_COMP)) {
+        // Ask the player to choose between three modes: with another player, with the AI Connecto-bot, or watching a game
+        System.out.println("Which mode do you want to play? (Type 1, 2 or 3)");
         System.out.println("1: Play with another person");
         System.out.println("2: Play with Connecto-bot");
+        System.out.println("3: Watch a game");
+        System.out.println("Add a board to play on another one than 6 rows x 7 columns x 4 in a row, e.g. 2 7x8x4 or 1 6x7x5");
         String choice = inFromUser.readLine().trim();
-        while (!choice.equals("1") && !choice.equals("2")) {
-          System.out.println("Please only type 1 or 2:");
+        while (!setBoard(choice)) {
+          System.out.println("Please only type 1, 2 or 3, for 1 or 2 optionally followed by rows x columns x in a row:");
+          System.out.println("4 to 9 columns, at most 11 rows for 9 columns (more for fewer columns), and 3 or more in a row that fit on the board");
           choice = inFromUser.readLine().trim();
         }
         outToServer.writeBytes(choice + "\n");
@@ -59,15 +113,22 @@ class Connect4Client {
         System.out.println("3: Connecto-bot : You will probably lose.");
         System.out.println("4: Connecto-bot 2.0 : If you win, Quan will connect you with $4.");
         System.out.println("5: Connecto-bot's FINAL FORM : You should probably just give up...");
+        System.out.println("6 - 10: Connecto-bot's secret forms : Each level looks one more move ahead.");
         String level = inFromUser.readLine().trim();
-        // The player can only enter number from 1 to 5
-        ArrayList<String> levels = new ArrayList<String>(Arrays.asList("1", "2", "3", "4", "5"));
+        // The player can only enter number from 1 to 10
+        ArrayList<String> levels = new ArrayList<String>(Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8", "9", "10"));
         while (!levels.contains(level)) {
-          System.out.println("Please only choose level 1 - 5:");
+          System.out.println("Please only choose level 1 - 10:");
           level = inFromUser.readLine().trim();
         }
         outToServer.writeBytes(level + "\n");
 
+      } else if (sentence.equals(PICK_GAME)) {
+        // Ask the spectator which of the listed games to watch
+        System.out.println("Which game do you want to watch? Type its number:");
+        String game = inFromUser.readLine().trim();
+        outToServer.writeBytes(game + "\n");
+
       } else if (sentence.equals(YOUR_NAME)) {
         // Ask for the player name
         System.out.println("What is your name?");
@@ -79,8 +140,8 @@ class Connect4Client {
         System.out.println("Your name has been used by your opponent.");
 
       } else if (sentence.equals(YOUR_MOVE)) {
-        // Ask the player to make a move (enter a number from 1 to 7)
-        System.out.println("It is your turn. Pick any available column from 1 to 7:");
+        // Ask the player to make a move (enter a number from 1 to the number of columns)
+        System.out.println("It is your turn. Pick any available column from 1 to " + cols + ":");
         String column = inFromUser.readLine().trim();
         outToServer.writeBytes(column + "\n");
 
@@ -90,7 +151,7 @@ class Connect4Client {
 
       } else if (sentence.equals(INVALID_MOVE)) {
         // Notify the player that his/her move is invalid and ask to move again
-        System.out.println("Please only enter a number between 1 and 7:");
+        System.out.println("Please only enter a number between 1 and " + cols + ":");
         String column = inFromUser.readLine().trim();
         outToServer.writeBytes(column + "\n");
 
@@ -113,10 +174,121 @@ class Connect4Client {
 
     clientSocket.close(); 
     outToServer.close();
-    inFromServer.close();
+    if (inFromServer != null)
+      inFromServer.close();
 
 
   }
+
+  /**
+  * Check the mode the player typed, with the board they may have added such as "2 7x8x4",
+  * and set up that board. Spectators get the board of the game they watch from the server.
+  * @return false if the mode or the board is not valid
+  */
+  static boolean setBoard(String choice)
+  {
+    String[] parts = choice.split("\\s+");
+    if (parts.length == 1 && parts[0].equals("3"))
+      return true;
+    if (parts.length > 2 || (!parts[0].equals("1") && !parts[0].equals("2")))
+      return false;
+    int newRows = 6;
+    int newCols = 7;
+    int newInARow = 4;
+    if (parts.length == 2) {
+      String[] sizes = parts[1].toLowerCase().split("x");
+      if (sizes.length < 2 || sizes.length > 3)
+        return false;
+      try {
+        newRows = Integer.parseInt(sizes[0]);
+        newCols = Integer.parseInt(sizes[1]);
+        if (sizes.length == 3)
+          newInARow = Integer.parseInt(sizes[2]);
+      } catch (NumberFormatException e) {
+        return false;
+      }
+      // the server keeps a board in two 64-bit words, with an extra row; the columns that do not fit the first go into the second
+      int firstCols = 64 / (newRows + 1);
+      if (newRows < 4 || newCols < 4 || newCols > 9 || (firstCols < newCols && (newCols - firstCols) * (newRows + 1) > 64)
+          || newInARow < 3 || newInARow > Math.max(newRows, newCols))
+        return false;
+    }
+    rows = newRows;
+    cols = newCols;
+    board = new int[rows][cols];
+    return true;
+  }
+
+  /**
+  * Read a frame of the binary protocol and turn it into what the text protocol would have sent:
+  * the keyword, the message, or the board after playing the moves in the frame.
+  */
+  static String readFrame(DataInputStream in) throws IOException
+  {
+    int length;
+    try {
+      length = in.readUnsignedShort();
+    } catch (EOFException e) {
+      return null;
+    }
+    byte[] frame = new byte[length];
+    in.readFully(frame);
+    int type = frame[0];
+    if (type == TEXT) {
+      return new String(frame, 1, length - 1, "UTF-8");
+    } else if (type == MOVES) {
+      // frame[1] is the state of the game; the server follows a win or a tie with its message
+      for (int i = 2; i < length; i++)
+        dropToken(frame[i]);
+      return boardToString();
+    } else if (type == BOARD) {
+      // a spectator's board: the board's size, then every move of the game so far
+      rows = frame[2];
+      cols = frame[3];
+      board = new int[rows][cols];
+      moveCount = 0;
+      for (int i = 4; i < length; i++)
+        dropToken(frame[i]);
+      return boardToString();
+    }
+    return FRAME_KEYWORDS[type];
+  }
+
+  /**
+  * Play a move on the client's board, X and O in turn.
+  */
+  static void dropToken(int col)
+  {
+    int row = rows - 1;
+    while (board[row][col] != 0)
+      row--;
+    board[row][col] = moveCount % 2 == 0 ? 1 : 2;
+    moveCount++;
+  }
+
+  /**
+  * Render the board the way the server does in the text protocol.
+  */
+  static String boardToString()
+  {
+    StringBuilder str = new StringBuilder();
+    for (int i = 0; i < rows; i++) {
+      str.append("     | ");
+      for (int j = 0; j < cols; j++) {
+        str.append(board[i][j] == 0 ? " " : board[i][j] == 1 ? "X" : "O").append(" | ");
+      }
+      str.append("\n");
+    }
+    str.append("     +");
+    for (int j = 0; j < cols; j++) {
+      str.append("---+");
+    }
+    str.append("\n      ");
+    for (int j = 0; j < cols; j++) {
+      str.append(" ").append(j + 1).append("  ");
+    }
+    return str.toString();
+  }
 }
 
 
@@ -1,11 +1,83 @@
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.util.concurrent.ThreadFactory;
 
 class Connect4Server {
+	// connections the system may hold for the server before it accepts them, so that a burst of clients is not dropped
+	static final int BACKLOG = 1024;
 
 	public static void main(String argv[]) throws Exception {
 
-		ServerSocket welcomeSocket = new ServerSocket(6789);
+		String mode = "threads";
+		int eventLoops = 2;
+		String journalFile = null;
+		int journalMegabytes = 64;
+		int sharedCacheMegabytes = 32;
+
+		// read the server options, given as --name=value
+		for (String arg : argv) {
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("--mode=")) {
+				// threads: one thread per client, virtual: one virtual thread per client, nio: a few event loops for all clients
+				mode = value;
+			} else if (arg.startsWith("--event-loops=")) {
+				eventLoops = Integer.parseInt(value);
+			} else if (arg.startsWith("--tt-kb=")) {
+				// memory of each transposition table; there is one per bot search or ponder running at once
+				TranspositionTable.configure(Integer.parseInt(value));
+			} else if (arg.startsWith("--shared-cache-mb=")) {
+				// memory of the search results every bot game shares, none when 0
+				sharedCacheMegabytes = Integer.parseInt(value);
+			} else if (arg.startsWith("--search-threads=")) {
+				// threads shared by the deep bot searches of every game
+				Game.configureSearchThreads(Integer.parseInt(value));
+			} else if (arg.startsWith("--bot-searches=")) {
+				// bot moves searched at once over the whole server
+				SearchExecutor.configure(Integer.parseInt(value), SearchExecutor.executor.getQueue().remainingCapacity());
+			} else if (arg.startsWith("--bot-queue=")) {
+				// bot moves that may wait for a search thread before players are told the server is busy
+				SearchExecutor.configure(SearchExecutor.executor.getCorePoolSize(), Integer.parseInt(value));
+			} else if (arg.startsWith("--ponder=")) {
+				// bot games that may think on the player's time at once
+				Ponder.configure(Integer.parseInt(value));
+			} else if (arg.startsWith("--solver-cells=")) {
+				// empty cells at which strong bots start solving the game exactly
+				EndgameSolver.emptyCells = Integer.parseInt(value);
+			} else if (arg.startsWith("--metrics-port=")) {
+				// local port of the metrics page; the numbers are also shown through JMX
+				Metrics.start(Integer.parseInt(value));
+			} else if (arg.startsWith("--journal=")) {
+				// file that records every game, to resume unfinished games after a crash
+				journalFile = value;
+			} else if (arg.startsWith("--journal-mb=")) {
+				journalMegabytes = Integer.parseInt(value);
+			} else if (arg.startsWith("--book=")) {
+				// opening book shared by every bot game
+				Game.book = OpeningBook.load(value);
+				System.out.println("Loaded opening book with " + Game.book.count + " positions");
+			} else {
+				System.out.println("Unknown option: " + arg);
+			}
+		}
+
+		SharedCache.configure(sharedCacheMegabytes);
+
+		if (journalFile != null) {
+			Journal.open(journalFile, journalMegabytes);
+		}
+
+		if (mode.equals("nio")) {
+			new NioServer(eventLoops).serve(6789);
+			return;
+		}
+
+		ThreadFactory playerThreads = Thread::new;
+		if (mode.equals("virtual")) {
+			playerThreads = virtualThreadFactory();
+		}
+
+		ServerSocket welcomeSocket = new ServerSocket(6789, BACKLOG);
 
 		System.out.println("Waiting for incoming connection Request...");
 
@@ -13,13 +85,31 @@ class Connect4Server {
 
 		while (true) {
 			Socket connectionSocket = welcomeSocket.accept();
+			// every write already holds a whole game event, so send it without waiting
+			connectionSocket.setTcpNoDelay(true);
 			clientsConnected++;
+			Metrics.connectionOpened();
 			System.out.println("New client connected with IP: " + connectionSocket.getInetAddress());
 			System.out.println("Total number of clients connected: " + clientsConnected);
 			
 			// create a new player, initially set to move second
 			Player currentPlayer = new Player(connectionSocket, false);
-			currentPlayer.start();
+			playerThreads.newThread(currentPlayer).start();
+		}
+	}
+
+	/**
+	 * Get a factory of virtual threads. Looked up at run time so that the server
+	 * still compiles and runs, with platform threads, on Java versions before 21.
+	 */
+	static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Virtual threads need Java 21 or later, using platform threads");
+			return Thread::new;
 		}
 	}
 }
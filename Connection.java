@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+* The Connection class holds one client socket of the NIO server: the bytes read
+* but not yet framed into lines, and the buffers waiting to be written. Any thread
+* may write to a connection; only its event loop touches the socket.
+*/
+
+public class Connection {
+	static final int BUFFER_SIZE = 4096;
+	static final int MAX_LINE = 1024;
+
+	SocketChannel channel;
+	NioServer.EventLoop loop;
+	SelectionKey key;
+	NioSession session;
+	ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	StringBuilder line = new StringBuilder();
+	boolean closed;
+
+	// guarded by this: buffers to send, whether the loop will flush them, and whether to close after
+	ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+	boolean writeScheduled;
+	boolean closing;
+	private ByteBuffer[] gather = new ByteBuffer[16];
+
+	Connection(SocketChannel initChannel, NioServer.EventLoop initLoop) {
+		channel = initChannel;
+		loop = initLoop;
+	}
+
+	/**
+	 * Queue buffers for the client. The event loop sends them when the socket can take
+	 * them, all queued buffers in one gathering write. The buffers must not change.
+	 */
+	synchronized void write(ByteBuffer[] parts, int count) throws IOException {
+		if (closing)
+			throw new IOException("Connection closed");
+		for (int i = 0; i < count; i++)
+			pending.add(parts[i].duplicate());
+		scheduleFlush();
+	}
+
+	/**
+	 * Close the connection once everything queued so far has been sent.
+	 */
+	synchronized void close() {
+		if (closing)
+			return;
+		closing = true;
+		scheduleFlush();
+	}
+
+	private void scheduleFlush() {
+		if (!writeScheduled) {
+			writeScheduled = true;
+			loop.scheduleFlush(this);
+		}
+	}
+
+	/**
+	 * Send as much of the queued bytes as the socket takes. Called by the event loop.
+	 */
+	void flush() throws IOException {
+		boolean done;
+		boolean close;
+		synchronized (this) {
+			int count = pending.size();
+			if (gather.length < count)
+				gather = new ByteBuffer[Math.max(gather.length * 2, count)];
+			pending.toArray(gather);
+			channel.write(gather, 0, count);
+			while (!pending.isEmpty() && !pending.peek().hasRemaining())
+				pending.poll();
+			for (int i = 0; i < count; i++)
+				gather[i] = null;
+			done = pending.isEmpty();
+			if (done)
+				writeScheduled = false;
+			// wait for the socket to take more before writing the rest
+			key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			close = done && closing;
+		}
+		if (close) {
+			closeNow();
+		} else if (done) {
+			session.onDrained();
+		}
+	}
+
+	/**
+	 * Check if everything queued so far has been sent.
+	 */
+	synchronized boolean drained() {
+		return pending.isEmpty();
+	}
+
+	/**
+	 * Read what the client sent and pass every complete line to the session. Called by the event loop.
+	 */
+	void read() throws IOException {
+		int count = channel.read(readBuffer);
+		if (count < 0) {
+			closeNow();
+			return;
+		}
+		readBuffer.flip();
+		while (readBuffer.hasRemaining() && !closed) {
+			char c = (char) (readBuffer.get() & 0xFF);
+			if (c == '\n') {
+				int end = line.length();
+				if (end > 0 && line.charAt(end - 1) == '\r')
+					line.setLength(end - 1);
+				String text = line.toString();
+				line.setLength(0);
+				session.onLine(text);
+			} else if (line.length() < MAX_LINE) {
+				line.append(c);
+			} else {
+				System.out.println("Line too long from " + channel.getRemoteAddress());
+				closeNow();
+			}
+		}
+		readBuffer.clear();
+	}
+
+	/**
+	 * Close the socket right away and let the session clean up. Called by the event loop.
+	 */
+	void closeNow() {
+		if (closed)
+			return;
+		closed = true;
+		synchronized (this) {
+			closing = true;
+		}
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+		session.onClose();
+	}
+}
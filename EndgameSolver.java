@@ -0,0 +1,182 @@
+/**
+* The EndgameSolver class searches a position to the end of the game to find its
+* exact result, used by the bot once few empty cells remain. It runs a negamax
+* search with null windows, like the solvers of Pascal Pons and John Tromp.
+*
+* Scores are from the point of view of the side to move: 0 for a draw, positive
+* for a win and negative for a loss, larger the sooner the game is won. A win with
+* the player's last token scores 1, a win with one token to spare scores 2, and so on.
+*/
+
+public class EndgameSolver {
+	static final int TABLE_SIZE = (1 << 16) + 1; // odd, so keys spread over every slot
+
+	// empty cells at which the bot switches from the heuristic search to the solver
+	static int emptyCells = 16;
+
+	// Each searching thread has a solver per Variant, see Variant.solvers. Stored
+	// bounds hold for any game on the same board, so they are never cleared.
+	final Variant variant;
+	final int cells;
+	final int minScore;
+
+	// upper bound of every position's score, stored as score - minScore + 1 so 0 means empty
+	long[] keys = new long[TABLE_SIZE];
+	byte[] bounds = new byte[TABLE_SIZE];
+	int[][] moveBuffers;
+
+	Game game;
+	long nodes;
+	long deadline;
+	boolean aborted;
+
+	// results of the last solve
+	int score;
+	int bestMove;
+
+	EndgameSolver(Variant initVariant) {
+		variant = initVariant;
+		cells = variant.cells;
+		minScore = -cells / 2;
+		moveBuffers = new int[cells + 1][variant.cols];
+	}
+
+	/**
+	 * Find the exact result of a position and the move that reaches it the fastest.
+	 * The position is left as it was.
+	 * @param initGame game whose side to move is solved
+	 * @param initDeadline System.nanoTime() after which to give up
+	 * @return false if the deadline passed before the result was found
+	 */
+	boolean solve(Game initGame, long initDeadline) {
+		game = initGame;
+		deadline = initDeadline;
+		nodes = 0;
+		aborted = false;
+		score = -cells;
+		bestMove = -1;
+
+		for (int col : variant.centerFirst) {
+			if (!game.canPlay(col))
+				continue;
+			int value;
+			if (game.isWinningMove(col)) {
+				value = (cells + 1 - game.moves) / 2;
+			} else {
+				game.placeToken(col);
+				value = -solveCurrent();
+				game.removeToken(col);
+				if (aborted)
+					return false;
+			}
+			if (value > score || (value == score && col < bestMove)) {
+				score = value;
+				bestMove = col;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Number of tokens still to be played until the game ends with perfect play
+	 * from the solved position, the winning token included.
+	 */
+	int distance() {
+		int played = game.moves;
+		if (score == 0)
+			return cells - played;
+		// the winner plays on the solved side's turns when the score is positive
+		int winnerParity = score > 0 ? played & 1 : (played + 1) & 1;
+		int lastMove = cells + 1 - 2 * Math.abs(score);
+		if ((lastMove & 1) != winnerParity)
+			lastMove--;
+		return lastMove - played + 1;
+	}
+
+	/**
+	 * Describe the last result, e.g. "win in 7".
+	 */
+	String describe() {
+		String result = score > 0 ? "win" : score < 0 ? "loss" : "draw";
+		return result + " in " + distance();
+	}
+
+	/**
+	 * Exact score of the current position, narrowing the possible range with null-window searches.
+	 */
+	private int solveCurrent() {
+		int min = -(cells - game.moves) / 2;
+		int max = (cells + 1 - game.moves) / 2;
+		while (min < max) {
+			int med = min + (max - min) / 2;
+			// probe closer to 0 first, where most results are
+			if (med <= 0 && min / 2 < med)
+				med = min / 2;
+			else if (med >= 0 && max / 2 > med)
+				med = max / 2;
+			int value = negamax(med, med + 1);
+			if (aborted)
+				return 0;
+			if (value <= med)
+				max = value;
+			else
+				min = value;
+		}
+		return min;
+	}
+
+	/**
+	 * Negamax search with alpha-beta pruning to the end of the game.
+	 * @return the exact score if it is between alpha and beta, otherwise a bound on the same side
+	 */
+	private int negamax(int alpha, int beta) {
+		if ((++nodes & 1023) == 0 && System.nanoTime() > deadline)
+			aborted = true;
+		if (aborted)
+			return 0;
+
+		int moves = game.moves;
+		if (moves == cells)
+			return 0;
+
+		for (int col = 0; col < variant.cols; col++) {
+			if (game.canPlay(col) && game.isWinningMove(col))
+				return (cells + 1 - moves) / 2;
+		}
+
+		// without an immediate win the best possible score is winning with the next token
+		int max = (cells - 1 - moves) / 2;
+		long key = game.key();
+		int slot = (int) Long.remainderUnsigned(key, TABLE_SIZE);
+		if (keys[slot] == key && bounds[slot] != 0)
+			max = bounds[slot] + minScore - 1;
+		if (beta > max) {
+			beta = max;
+			if (alpha >= beta)
+				return beta;
+		}
+
+		int[] columns = moveBuffers[moves];
+		int count = 0;
+		for (int col : variant.centerFirst) {
+			if (game.canPlay(col))
+				columns[count++] = col;
+		}
+
+		for (int i = 0; i < count; i++) {
+			game.placeToken(columns[i]);
+			int value = -negamax(-beta, -alpha);
+			game.removeToken(columns[i]);
+			if (aborted)
+				return 0;
+			if (value >= beta)
+				return value;
+			if (value > alpha)
+				alpha = value;
+		}
+
+		keys[slot] = key;
+		bounds[slot] = (byte) (alpha - minScore + 1);
+		return alpha;
+	}
+}
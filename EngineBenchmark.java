@@ -0,0 +1,247 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+/**
+* The EngineBenchmark class measures the speed of the Game engine on a fixed corpus
+* of opening, midgame and endgame positions, so that engine changes can be checked
+* for regressions. Like JMH, it runs each benchmark for warmup iterations first,
+* then for measured iterations, and reports the mean throughput with its spread,
+* the bytes allocated per operation and, for searches, the positions searched per
+* second.
+*
+* java EngineBenchmark [--warmup=3] [--iterations=5] [--ms=1000] [--filter=minMax] [--tt-kb=256]
+*
+* --ms is the length of each iteration and --filter runs only the benchmarks whose
+* name contains the given text. Searches start from an empty transposition table of
+* --tt-kb kilobytes (the server's default size if not given). Results are only
+* comparable between runs on the same machine with the same JVM options.
+*/
+
+public class EngineBenchmark {
+
+	// fixed corpus, as the columns (1 - 7) played from the empty board; none of them is won
+	static final String[] OPENING = { "75215", "31214534", "4561124", "2233", "73142651", "3467132", "2263", "4155114" };
+	static final String[] MIDGAME = { "7534241627565451677731", "127111225376674753", "5725267727361573",
+			"565564513522132", "16167721236124", "137474351145117", "25254436572261", "37775732444731462241" };
+	static final String[] ENDGAME = { "324147142573744746237366271661126", "77652454252556711654736671364112",
+			"46731126224645671411756452165", "47361111127677617272635323553", "22557756317337116354371243415175",
+			"462744756316717634324142311167627", "2734517123233612257364236555645", "5734274651773334551232766736425" };
+
+	// results are added here so that the JIT cannot drop the work that produced them
+	static volatile long sink;
+
+	/**
+	 * One benchmark: an operation run on one corpus position after another.
+	 */
+	abstract static class Benchmark {
+		String name;
+		Game[] positions;
+		long nodes; // positions searched so far, by search benchmarks
+
+		Benchmark(String initName, Game[] initPositions) {
+			name = initName;
+			positions = initPositions;
+		}
+
+		/**
+		 * Run the operation once on a position and return a result to sink.
+		 */
+		abstract long run(Game game);
+	}
+
+	public static void main(String[] argv) {
+		int warmup = 3;
+		int iterations = 5;
+		long iterationMs = 1000;
+		String filter = "";
+		for (String arg : argv) {
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("--warmup=")) {
+				warmup = Integer.parseInt(value);
+			} else if (arg.startsWith("--iterations=")) {
+				iterations = Integer.parseInt(value);
+			} else if (arg.startsWith("--ms=")) {
+				iterationMs = Long.parseLong(value);
+			} else if (arg.startsWith("--filter=")) {
+				filter = value;
+			} else if (arg.startsWith("--tt-kb=")) {
+				TranspositionTable.configure(Integer.parseInt(value));
+			} else {
+				System.out.println("Unknown option: " + arg);
+			}
+		}
+
+		System.out.println(String.format("%-26s %14s %10s %12s %14s", "Benchmark", "ops/s", "error", "bytes/op", "nodes/s"));
+		for (Benchmark benchmark : benchmarks()) {
+			if (benchmark.name.contains(filter))
+				measure(benchmark, warmup, iterations, iterationMs * 1000000);
+		}
+	}
+
+	/**
+	 * The benchmarks: the evaluation and board primitives over the whole corpus, and
+	 * searches of depth 2 to 5 over each phase of the game.
+	 */
+	static ArrayList<Benchmark> benchmarks() {
+		Game[] all = new Game[OPENING.length + MIDGAME.length + ENDGAME.length];
+		Game[] opening = positions(OPENING);
+		Game[] midgame = positions(MIDGAME);
+		Game[] endgame = positions(ENDGAME);
+		System.arraycopy(opening, 0, all, 0, opening.length);
+		System.arraycopy(midgame, 0, all, opening.length, midgame.length);
+		System.arraycopy(endgame, 0, all, opening.length + midgame.length, endgame.length);
+		// evalSegment takes the tokens of a window, as the original evaluation built them
+		int[][] segments = new int[all.length * Game.WINDOWS.length][];
+		for (int i = 0; i < all.length; i++) {
+			for (int w = 0; w < Game.WINDOWS.length; w++) {
+				int[] segment = new int[4];
+				for (int k = 0; k < 4; k++) {
+					int cell = Game.WINDOWS[w][k];
+					segment[k] = all[i].getToken(Game.ROWS - 1 - cell % Game.STRIDE, cell / Game.STRIDE);
+				}
+				segments[i * Game.WINDOWS.length + w] = segment;
+			}
+		}
+		int[] columns = new int[Game.COLS];
+
+		ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new Benchmark("staticEval", all) {
+			long run(Game game) {
+				return game.staticEval();
+			}
+		});
+		benchmarks.add(new Benchmark("evalSegment", all) {
+			int next;
+
+			long run(Game game) {
+				next = next + 1 < segments.length ? next + 1 : 0;
+				return game.evalSegment(segments[next]);
+			}
+		});
+		benchmarks.add(new Benchmark("isWin", all) {
+			long run(Game game) {
+				return game.isWin(game.history[game.moves - 1]) ? 1 : 0;
+			}
+		});
+		benchmarks.add(new Benchmark("getValidCols(list)", all) {
+			long run(Game game) {
+				return game.getValidCols().size();
+			}
+		});
+		benchmarks.add(new Benchmark("getValidCols(array)", all) {
+			long run(Game game) {
+				return game.getValidCols(columns);
+			}
+		});
+		benchmarks.add(new Benchmark("placeToken+removeToken", all) {
+			long run(Game game) {
+				int count = game.getValidCols(columns);
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					game.placeToken(columns[i]);
+					sum += game.evalScore;
+					game.removeToken(columns[i]);
+				}
+				return sum;
+			}
+		});
+		// every search below starts with this, subtract it to get the search alone
+		benchmarks.add(new Benchmark("clear table", all) {
+			long run(Game game) {
+				game.table.clear();
+				return 0;
+			}
+		});
+		String[] phases = { "opening", "midgame", "endgame" };
+		Game[][] phasePositions = { opening, midgame, endgame };
+		for (int depth = 2; depth <= 5; depth++) {
+			for (int p = 0; p < phases.length; p++) {
+				int searchDepth = depth;
+				benchmarks.add(new Benchmark("minMax(" + depth + ") " + phases[p], phasePositions[p]) {
+					long run(Game game) {
+						// search from scratch every time, as the bot does for a new position
+						game.table.clear();
+						int[] result = game.minMax(searchDepth);
+						nodes += game.nodes;
+						return result[0] + result[1];
+					}
+				});
+			}
+		}
+		return benchmarks;
+	}
+
+	/**
+	 * Play the move sequences of a corpus from the empty board.
+	 */
+	static Game[] positions(String[] corpus) {
+		Game[] games = new Game[corpus.length];
+		for (int i = 0; i < corpus.length; i++) {
+			Game game = new Game();
+			game.start(true);
+			for (char c : corpus[i].toCharArray())
+				game.placeToken(c - '1');
+			game.table = new TranspositionTable();
+			games[i] = game;
+		}
+		return games;
+	}
+
+	static void measure(Benchmark benchmark, int warmup, int iterations, long iterationNanos) {
+		for (int i = 0; i < warmup; i++)
+			iterate(benchmark, iterationNanos);
+		double[] throughput = new double[iterations];
+		long ops = 0;
+		long nanos = 0;
+		long bytes = 0;
+		long nodes = 0;
+		for (int i = 0; i < iterations; i++) {
+			benchmark.nodes = 0;
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			long count = iterate(benchmark, iterationNanos);
+			long elapsed = System.nanoTime() - start;
+			bytes += allocatedBytes() - allocated;
+			throughput[i] = count * 1e9 / elapsed;
+			ops += count;
+			nanos += elapsed;
+			nodes += benchmark.nodes;
+		}
+		double mean = ops * 1e9 / nanos;
+		double variance = 0;
+		for (double t : throughput)
+			variance += (t - mean) * (t - mean);
+		double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+		String nodeRate = nodes > 0 ? String.format("%14.0f", nodes * 1e9 / nanos) : String.format("%14s", "-");
+		System.out.println(String.format("%-26s %14.0f %10.0f %12.1f %s", benchmark.name, mean, error,
+				(double) bytes / ops, nodeRate));
+	}
+
+	/**
+	 * Run the benchmark over its positions for about the given time.
+	 * @return the number of operations run
+	 */
+	static long iterate(Benchmark benchmark, long nanos) {
+		Game[] positions = benchmark.positions;
+		long end = System.nanoTime() + nanos;
+		long count = 0;
+		long result = 0;
+		do {
+			for (Game game : positions)
+				result += benchmark.run(game);
+			count += positions.length;
+		} while (System.nanoTime() < end);
+		sink += result;
+		return count;
+	}
+
+	/**
+	 * Bytes allocated by this thread so far, as reported by HotSpot; 0 on other JVMs.
+	 */
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+}
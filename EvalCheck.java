@@ -0,0 +1,100 @@
+import java.util.Random;
+
+/**
+* The EvalCheck class checks the incremental static evaluation of Game against the
+* full scan it replaced. It plays seeded random games on the standard board and,
+* after every placeToken and every removeToken that takes the game back to the
+* empty board, compares staticEval with a scan of every window of four cells
+* through evalSegment, as the evaluation was computed before it was kept up to date.
+*
+* java EvalCheck [--games=1000] [--seed=1]
+*
+* It prints the first position where the two differ and exits with status 1, or
+* the number of positions checked.
+*/
+
+public class EvalCheck {
+
+	public static void main(String[] argv) {
+		int games = 1000;
+		long seed = 1;
+		for (String arg : argv) {
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("--games=")) {
+				games = Integer.parseInt(value);
+			} else if (arg.startsWith("--seed=")) {
+				seed = Long.parseLong(value);
+			} else {
+				System.out.println("Unknown option: " + arg);
+			}
+		}
+
+		Random random = new Random(seed);
+		Game game = new Game();
+		int[] columns = new int[Game.COLS];
+		long checked = 0;
+		for (int i = 0; i < games; i++) {
+			game.start(true);
+			check(game, "start of game " + i);
+			// play random moves until a side wins or the board is full
+			boolean over = false;
+			while (!over) {
+				int count = game.getValidCols(columns);
+				int col = columns[random.nextInt(count)];
+				game.placeToken(col);
+				check(game, "after placeToken(" + col + ") in game " + i);
+				checked++;
+				over = game.isWin(col) || game.isTie();
+			}
+			// then take every move back
+			while (game.moves > 0) {
+				int col = game.history[game.moves - 1];
+				game.removeToken(col);
+				check(game, "after removeToken(" + col + ") in game " + i);
+				checked++;
+			}
+		}
+		System.out.println("The incremental evaluation matched the full scan in " + checked + " positions of " + games + " games");
+	}
+
+	/**
+	 * Compare the incremental evaluation of a game with the full scan, and exit on a difference.
+	 */
+	static void check(Game game, String where) {
+		int expected = fullScan(game);
+		int actual = game.staticEval();
+		if (actual != expected) {
+			System.out.println("staticEval is " + actual + " but the full scan gives " + expected + " " + where);
+			System.out.println(game.boardToString());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * The static evaluation by scanning every window of four cells: the sum of
+	 * evalSegment over the windows, or WIN or LOSS as soon as a window is complete.
+	 */
+	static int fullScan(Game game) {
+		int value = 0;
+		for (int row = 0; row < Game.ROWS; row++) {
+			for (int col = 0; col < Game.COLS; col++) {
+				// columns, rows, and diagonals going down and up to the right, from this cell
+				int[][] directions = { { 1, 0 }, { 0, 1 }, { 1, 1 }, { -1, 1 } };
+				for (int[] dir : directions) {
+					int endRow = row + 3 * dir[0];
+					int endCol = col + 3 * dir[1];
+					if (endRow < 0 || endRow >= Game.ROWS || endCol >= Game.COLS)
+						continue;
+					int[] segment = new int[4];
+					for (int i = 0; i < 4; i++)
+						segment[i] = game.getToken(row + i * dir[0], col + i * dir[1]);
+					int score = game.evalSegment(segment);
+					if (score == Game.WIN || score == Game.LOSS)
+						return score;
+					value += score;
+				}
+			}
+		}
+		return value;
+	}
+}
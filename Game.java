@@ -3,9 +3,14 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Game {
 
@@ -15,17 +20,100 @@ public class Game {
 	static final int WIN = 5120;
 	static final int LOSS = -5120;
 
+	static final int MAX_BOT_LEVEL = 10;
+	// milliseconds each bot level may think per move
+	static final int[] LEVEL_BUDGET_MS = { 0, 0, 50, 100, 150, 200, 300, 400, 500, 750, 1000 };
+	// lowest bot level that solves endgames exactly
+	static final int SOLVER_LEVEL = 5;
+	// iterations at least this deep split the root moves over searchPool
+	static final int PARALLEL_DEPTH = 7;
+	static final int INFINITY = 100000;
+
+	// the standard board of Variant.STANDARD, which the offline tools, the opening
+	// book and the Journal work with; a game has its own in variant
+	static final int ROWS = 6;
+	static final int COLS = 7;
+	static final int STRIDE = ROWS + 1;
+	static final int[][] WINDOWS = Variant.STANDARD.windows;
+	static final int[][] SEGMENT_SCORES = Variant.STANDARD.segmentScores;
+
+	final Variant variant; // the board this game is played on
 	Player player1;
 	Player player2;
 	Player currentPlayer;
-	int[][] board;
-	int[] heights;
+	long position; // tokens of the side to move
+	long mask; // every occupied cell
+	// the same for the columns of a wide variant that do not fit in position and mask
+	long positionHigh;
+	long maskHigh;
+	int moves;
+	int[] history; // column of every move played, in order
+	// X and O tokens in every window, the summed score of the windows and the number of complete ones
+	int[] xCounts;
+	int[] oCounts;
+	int evalScore;
+	int xFours;
+	int oFours;
 	boolean endGame;
 	boolean botEnabled;
 	int botLevel;
+	// search buffers, one row per ply so that no search allocates
+	int[] killers; // best move found at each ply of the last search
+	int[][] moveBuffers;
+	int bestMove; // best move found by the last search
+	int depthReached; // depth of the last finished iteration
+	long deadline; // System.nanoTime() at which a search gives up
+	long nodeLimit; // positions after which a search gives up
+	boolean aborted; // the search ran out of budget and its result is void
+	boolean botProvedWin; // the endgame solver proved that the bot wins
+	Random random = new Random();
+	TranspositionTable table;
+	long nodes; // positions visited by the last search
+	long cutoffs; // moves of the last search that refuted their position before all replies were searched
+	int metricsSlot = -1; // where Metrics counts this game while it runs
+	int[][] segmentScores; // window scores the evaluation of this game uses
+	long botNodes = Long.MAX_VALUE; // positions the bot may search per move, on top of its time budget
+	Ponder ponder; // the bot thinking on the player's time, null when it is not
+	boolean closed; // the game is over or its player left, so the bot no longer ponders
+	boolean pondering; // this is the board of a Ponder: searched on one thread, so that it can stop at once
+	volatile boolean stopRequested; // set from another thread to end the search
+	long journalId = -1; // id of the game in the Journal, -1 if not recorded
+	int resumedMoves; // moves of the unfinished Journal game this game resumed, 0 for a new game
+	volatile Spectators spectators; // who watches this game, null until it is listed
+
+	// shared by every game, null when the server searches single-threaded
+	static ForkJoinPool searchPool;
+
+	// opening moves for strong levels, null when the server has no book
+	static OpeningBook book;
+
+	// held while changing the game or sending its messages; a lock rather than
+	// synchronized so that virtual threads writing to sockets do not pin their carrier
+	final ReentrantLock lock = new ReentrantLock();
+
+	// completes once both players of a human game have entered their names
+	final CompletableFuture<Void> namesReady = new CompletableFuture<Void>();
+	final AtomicInteger namesMissing = new AtomicInteger(2);
 
-	static Player dummy = new Player();
-	static Player waitingPlayer = dummy;
+	/**
+	 * Create a game on the standard board.
+	 */
+	Game() {
+		this(Variant.STANDARD);
+	}
+
+	/**
+	 * Create a game on the board of a variant, with its search buffers.
+	 */
+	Game(Variant initVariant) {
+		variant = initVariant;
+		history = new int[variant.cells];
+		xCounts = new int[variant.windows.length];
+		oCounts = new int[variant.windows.length];
+		killers = new int[variant.cells + 1];
+		moveBuffers = new int[variant.cells + 1][variant.cols];
+		segmentScores = variant.segmentScores;
+	}
 
 	/**
 	 * Start a new game.
@@ -34,8 +122,93 @@ public class Game {
 	public void start(boolean initBotEnabled) {
 		currentPlayer = player1;
 		botEnabled = initBotEnabled;
-		board = new int[6][7];
-		heights = new int[7];
+		position = 0;
+		mask = 0;
+		positionHigh = 0;
+		maskHigh = 0;
+		moves = 0;
+		xCounts = new int[variant.windows.length];
+		oCounts = new int[variant.windows.length];
+		evalScore = 0;
+		xFours = 0;
+		oFours = 0;
+	}
+
+	/**
+	 * Unique key of the position: the tokens of the side to move plus a bit
+	 * above the top token of every column. The second long of a wide variant is
+	 * mixed in, so two of its positions may share a key, though very rarely.
+	 */
+	long key() {
+		return position + mask + (positionHigh + maskHigh) * 0x9E3779B97F4A7C15L;
+	}
+
+	/**
+	 * Bitboard of the X tokens (player1 always moves first).
+	 */
+	long xTokens() {
+		return (moves & 1) == 0 ? position : position ^ mask;
+	}
+
+	/**
+	 * Get the token at a cell, rows counted from the top as in boardToString.
+	 * @return 0 if empty, 1 for X, 2 for O
+	 */
+	public int getToken(int row, int col) {
+		long cell = 1L << (variant.shift(col) + variant.rows - 1 - row);
+		if (col >= variant.lowCols) {
+			if ((maskHigh & cell) == 0)
+				return 0;
+			return (((moves & 1) == 0 ? positionHigh : positionHigh ^ maskHigh) & cell) != 0 ? 1 : 2;
+		}
+		if ((mask & cell) == 0)
+			return 0;
+		return (xTokens() & cell) != 0 ? 1 : 2;
+	}
+
+	/**
+	 * Set up a position from its tokens alone, e.g. one read from a dump without its
+	 * moves. The moves history is left empty. Only boards that are not wide fit in the
+	 * bitboards.
+	 * @param x bitboard of the X tokens
+	 * @param o bitboard of the O tokens
+	 * @return false if the tokens are no position: tokens on both sides of a cell,
+	 *         tokens floating over empty cells, or X not having as many tokens as O or one more
+	 */
+	boolean setTokens(long x, long o) {
+		long all = x | o;
+		if ((x & o) != 0 || (all & ~variant.fullBoard) != 0)
+			return false;
+		for (int col = 0; col < variant.cols; col++) {
+			long column = (all & variant.columnMask(col)) >>> (col * variant.stride);
+			if ((column & (column + 1)) != 0)
+				return false;
+		}
+		int xCount = Long.bitCount(x);
+		int oCount = Long.bitCount(o);
+		if (xCount != oCount && xCount != oCount + 1)
+			return false;
+		start(botEnabled);
+		for (long tokens = x; tokens != 0; tokens &= tokens - 1)
+			updateWindows(Long.numberOfTrailingZeros(tokens), true, 1);
+		for (long tokens = o; tokens != 0; tokens &= tokens - 1)
+			updateWindows(Long.numberOfTrailingZeros(tokens), false, 1);
+		moves = xCount + oCount;
+		mask = all;
+		position = (moves & 1) == 0 ? x : o;
+		return true;
+	}
+
+	/**
+	 * Count a player of a human game as ready once they have entered their name.
+	 * Completes namesReady when both are.
+	 */
+	public void nameReady() {
+		if (namesMissing.decrementAndGet() == 0) {
+			Journal.gameReady(this);
+			Spectators.list(this);
+			namesReady.complete(null);
+		}
 	}
 
 	/**
@@ -43,19 +216,23 @@ public class Game {
 	 * @return String representation of the board
 	 */
 	public String boardToString() {
-		String str = "";
-		for (int i = 0; i < 6; i++) {
-			str += "     | ";
-			for (int j = 0; j < 7; j++) {
-				String token = board[i][j] == 0 ? " " : board[i][j] == 1 ? "X" : "O";
-				str += token + " | ";
+		return new String(boardBytes(), StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Encode the board the way boardToString prints it, ready to send to a text client.
+	 * @return a new array, filled from a template of the empty board
+	 */
+	public byte[] boardBytes() {
+		byte[] board = variant.boardTemplate.clone();
+		for (int i = 0; i < variant.rows; i++) {
+			for (int j = 0; j < variant.cols; j++) {
+				int cell = getToken(i, j);
+				if (cell != 0)
+					board[i * variant.boardLine + 7 + 4 * j] = (byte) (cell == 1 ? 'X' : 'O');
 			}
-			str += "\n";
 		}
-		str += "     +---+---+---+---+---+---+---+\n";
-		str += "       1   2   3   4   5   6   7  \n";
-
-		return str;
+		return board;
 	}
 
 	/**
@@ -71,7 +248,13 @@ public class Game {
 			else if (token == 2)
 				OCount++;
 		}
+		return segmentScore(XCount, OCount);
+	}
 
+	/**
+	 * Evaluate the score of a length 4 segment holding the given number of each token.
+	 */
+	static int segmentScore(int XCount, int OCount) {
 		if (XCount > 0 && OCount > 0)
 			// segments with both type of token don't affect score
 			return 0; 
@@ -102,190 +285,571 @@ public class Game {
 	}
 
 	/**
-	 * Return a static evaluation score of the current board state
+	 * Return a static evaluation score of the current board state.
+	 * The window counts and score are kept up to date by placeToken and removeToken.
 	 */
 	public int staticEval() {
-		int value = 0;
-
-		// evaluate columns
-		for (int i = 0; i < 7; i++) {
-			for (int j = 0; j < 3; j++) {
-				int evalSegment = evalSegment(
-						new int[] { board[j][i], board[j + 1][i], board[j + 2][i], board[j + 3][i] });
-				if (evalSegment == WIN || evalSegment == LOSS) {
-					return evalSegment;
-				} else {
-					value += evalSegment;
-				}
-			}
-		}
+		if (xFours > 0)
+			return WIN;
+		if (oFours > 0)
+			return LOSS;
+		return evalScore;
+	}
 
-		// evaluate rows
-		for (int i = 0; i < 6; i++) {
-			for (int j = 0; j < 4; j++) {
-				int evalSegment = evalSegment(
-						new int[] { board[i][j], board[i][j + 1], board[i][j + 2], board[i][j + 3] });
-				if (evalSegment == WIN || evalSegment == LOSS) {
-					return evalSegment;
-				} else {
-					value += evalSegment;
-				}
-			}
-		}
-		
-		// save all diagonals as lists
-		HashMap<Integer, ArrayList<Integer>> diagMap = new HashMap<>();
-		for (int i = 0; i < 6; i++) {
-			for (int j = 0; j < 7; j++) {
-				int sum = i + j;
-				if (!diagMap.containsKey(sum)) diagMap.put(sum, new ArrayList<Integer>());
-				diagMap.get(sum).add(board[i][j]);
-			}
-		}
-		
-		for (int i = 0; i < 6; i++) {
-			for (int j = 0; j < 7; j++) {
-				int diff = i - j + 30;
-				if (!diagMap.containsKey(diff)) diagMap.put(diff, new ArrayList<Integer>());
-				diagMap.get(diff).add(board[i][j]);
-			}
+	/**
+	 * Window scores for other weights of one, two and three tokens of a side alone
+	 * in a window than those of segmentScore, e.g. to compare weights in self-play.
+	 * Set them on a game before its first token.
+	 * @param weights score of one, two and three X tokens alone in a window
+	 */
+	static int[][] buildSegmentScores(int[] weights) {
+		int[][] scores = new int[5][5];
+		for (int count = 1; count <= 3; count++) {
+			scores[count][0] = weights[count - 1];
+			scores[0][count] = -weights[count - 1];
 		}
-		
-		// evaluate diagonals
-		for (ArrayList<Integer> diag : diagMap.values()) {
-			if (diag.size() > 3) {
-				for (int i = 0; i < diag.size()-3; i++){
-					int evalSegment = evalSegment(new int[] {diag.get(i), diag.get(i+1), diag.get(i+2), diag.get(i+3)});
-					if (evalSegment == WIN || evalSegment == LOSS) {
-						return evalSegment;
-					} else {
-						value += evalSegment;
-					}
-				}
+		return scores;
+	}
+
+	/**
+	 * Update the windows through a cell after a token was added (delta 1) or removed (delta -1).
+	 */
+	private void updateWindows(int cell, boolean isX, int delta) {
+		int k = variant.k;
+		for (int w : variant.cellWindows[cell]) {
+			int x = xCounts[w];
+			int o = oCounts[w];
+			evalScore -= segmentScores[x][o];
+			if (isX) {
+				if (x == k)
+					xFours--;
+				x += delta;
+				xCounts[w] = x;
+				if (x == k)
+					xFours++;
+			} else {
+				if (o == k)
+					oFours--;
+				o += delta;
+				oCounts[w] = o;
+				if (o == k)
+					oFours++;
 			}
+			evalScore += segmentScores[x][o];
 		}
-		
-		return value;
 	}
 
 	/**
-	 * Implementation of the miniMax algorithm for min player
+	 * Search the best move for the side to move using alpha-beta pruning.
 	 * @param depth specifies how many turns to look into the future
+	 * @return the score (positive favours X) and the best column
 	 */
 	public int[] minMax(int depth) {
+		int val = search(depth);
+		return new int[] { val, bestMove };
+	}
+
+	/**
+	 * Search the best move for the side to move using alpha-beta pruning and
+	 * leave it in bestMove (-1 if the game is over). Among equally scored moves
+	 * the lowest column is picked, so the result does not depend on the order
+	 * moves are tried in. Nothing is allocated once the game has its table.
+	 * @param depth specifies how many turns to look into the future
+	 * @return the score, positive favours X
+	 */
+	public int search(int depth) {
+		nodes = 0;
+		cutoffs = 0;
+		deadline = Long.MAX_VALUE;
+		nodeLimit = Long.MAX_VALUE;
+		aborted = false;
+		if (table == null)
+			table = TranspositionTable.lease(this);
+		table.newSearch();
+		depthReached = depth;
+		return searchRoot(depth);
+	}
+
+	/**
+	 * Search deeper and deeper until maxDepth or until the budget runs out, and
+	 * leave the move of the deepest finished iteration in bestMove. Each iteration
+	 * tries the moves found best by the previous one first. The first iteration
+	 * always finishes so that there is a move to play.
+	 * @param maxDepth deepest search to run
+	 * @param budgetNanos wall-clock time allowed for the whole search
+	 * @param maxNodes positions allowed for the whole search
+	 * @return the score of the deepest finished iteration, positive favours X
+	 */
+	public int iterativeSearch(int maxDepth, long budgetNanos, long maxNodes) {
+		long start = System.nanoTime();
+		nodes = 0;
+		cutoffs = 0;
+		deadline = Long.MAX_VALUE;
+		nodeLimit = Long.MAX_VALUE;
+		aborted = false;
+		if (table == null)
+			table = TranspositionTable.lease(this);
+		table.newSearch();
+
+		depthReached = 1;
+		int score = searchRoot(1);
+		int move = bestMove;
+		deadline = start + budgetNanos;
+		nodeLimit = maxNodes;
+		for (int depth = 2; depth <= maxDepth && move >= 0; depth++) {
+			int value = searchPool != null && depth >= PARALLEL_DEPTH && !pondering ? searchRootParallel(depth) : searchRoot(depth);
+			if (aborted)
+				break;
+			score = value;
+			move = bestMove;
+			depthReached = depth;
+		}
+		bestMove = move;
+		return score;
+	}
+
+	/**
+	 * Search the root position to the given depth, see search.
+	 */
+	private int searchRoot(int depth) {
+		int sign = (moves & 1) == 0 ? 1 : -1;
+		nodes++;
+		bestMove = -1;
 		int val = staticEval();
 		if (val == WIN || val == LOSS || depth == 0)
-			return new int[] { val, -1 };
+			return val;
+
+		long key = key();
+		long shared = sharedProbe(key, depth);
+		if (shared != 0 && SharedCache.depth(shared) == depth && SharedCache.bound(shared) == TranspositionTable.EXACT) {
+			SharedCache.cache.used.increment();
+			bestMove = SharedCache.move(shared);
+			killers[0] = bestMove;
+			table.store(key, depth, TranspositionTable.EXACT, bestMove, SharedCache.score(shared));
+			return sign * SharedCache.score(shared);
+		}
+		int slot = table.probe(key);
+		int[] columns = moveBuffers[0];
+		int count = orderMoves(columns, 0, slot < 0 ? -1 : table.move(slot));
 
-		// get all valid moves
-		ArrayList<Integer> columns = getValidCols();
+		if (count == 0)
+			return val;
 
-		if (columns.size() == 0)
-			return new int[] { val, -1 };
-		
-		val = 100000;
+		int best = -INFINITY;
 		int move = -1;
 
-		// for each valid move, recursively call maxMin
-		for (int col : columns) {
+		for (int i = 0; i < count; i++) {
+			int col = columns[i];
+			// a lower column only has to tie the best score to replace it, a higher one has to beat it
+			int alpha = move < 0 ? -INFINITY : col < move ? best - 1 : best;
 			placeToken(col);
-			// switch the active player for the next move
-			currentPlayer = player1;
-			int value = maxMin(depth - 1)[0];
-			if (value < val) {
+			int value = -negamax(depth - 1, 1, -INFINITY, -alpha);
+			removeToken(col);
+			if (aborted)
+				return 0;
+			if (value > best || (value == best && col < move)) {
+				best = value;
 				move = col;
-				val = value;
 			}
-			// undo the move
-			removeToken(col);
-			currentPlayer = null;
 		}
+		killers[0] = move;
+		bestMove = move;
+		// keep the best move for the next, deeper iteration
+		table.store(key, depth, TranspositionTable.EXACT, move, best);
+		sharedStore(key, depth, TranspositionTable.EXACT, move, best);
 
-		return new int[] { val, move };
+		return sign * best;
 	}
 
 	/**
-	 * Implementation of the miniMax algorithm for max player
-	 * @param depth specifies how many turns to look into the future
+	 * Search the root position like searchRoot, but with every root move after the
+	 * first one searched in parallel on searchPool. The first move is searched here
+	 * to get a score to beat; the others share the best score found so far. As with
+	 * searchRoot, ties go to the lowest column, so the move does not depend on timing.
 	 */
-	public int[] maxMin(int depth) {
+	private int searchRootParallel(int depth) {
+		int sign = (moves & 1) == 0 ? 1 : -1;
+		nodes++;
+		bestMove = -1;
 		int val = staticEval();
-		if (val == WIN || val == LOSS || depth == 0)
-			return new int[] { val, -1 };
+		if (val == WIN || val == LOSS)
+			return val;
+
+		long key = key();
+		long shared = sharedProbe(key, depth);
+		if (shared != 0 && SharedCache.depth(shared) == depth && SharedCache.bound(shared) == TranspositionTable.EXACT) {
+			SharedCache.cache.used.increment();
+			bestMove = SharedCache.move(shared);
+			killers[0] = bestMove;
+			table.store(key, depth, TranspositionTable.EXACT, bestMove, SharedCache.score(shared));
+			return sign * SharedCache.score(shared);
+		}
+		int slot = table.probe(key);
+		int[] columns = moveBuffers[0];
+		int count = orderMoves(columns, 0, slot < 0 ? -1 : table.move(slot));
+
+		if (count == 0)
+			return val;
+
+		int move = columns[0];
+		placeToken(move);
+		int best = -negamax(depth - 1, 1, -INFINITY, INFINITY);
+		removeToken(move);
+		if (aborted)
+			return 0;
+
+		AtomicInteger sharedBest = new AtomicInteger(best);
+		int[] values = new int[count];
+		long[] workerNodes = new long[count];
+		long[] workerCutoffs = new long[count];
+		boolean[] workerAborted = new boolean[count];
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 1; i < count; i++) {
+			final int index = i;
+			final int col = columns[i];
+			tasks.add(() -> {
+				Game worker = variant.workers.get();
+				worker.copyPosition(this);
+				worker.placeToken(col);
+				// scores equal to the best are searched exactly to break ties on the column
+				int alpha = sharedBest.get() - 1;
+				int value = -worker.negamax(depth - 1, 1, -INFINITY, -alpha);
+				values[index] = value;
+				workerNodes[index] = worker.nodes;
+				workerCutoffs[index] = worker.cutoffs;
+				workerAborted[index] = worker.aborted;
+				if (!worker.aborted)
+					sharedBest.accumulateAndGet(value, Math::max);
+				return null;
+			});
+		}
+		searchPool.invokeAll(tasks);
+
+		for (int i = 1; i < count; i++) {
+			nodes += workerNodes[i];
+			cutoffs += workerCutoffs[i];
+			aborted |= workerAborted[i];
+			int col = columns[i];
+			if (values[i] > best || (values[i] == best && col < move)) {
+				best = values[i];
+				move = col;
+			}
+		}
+		if (aborted)
+			return 0;
+		killers[0] = move;
+		bestMove = move;
+		table.store(key, depth, TranspositionTable.EXACT, move, best);
+		sharedStore(key, depth, TranspositionTable.EXACT, move, best);
+
+		return sign * best;
+	}
 
-		ArrayList<Integer> columns = getValidCols();
+	/**
+	 * Create the search copy of the board used by one pool thread.
+	 */
+	static Game newWorker(Variant variant) {
+		Game worker = new Game(variant);
+		worker.start(true);
+		worker.table = new TranspositionTable();
+		return worker;
+	}
 
-		if (columns.size() == 0)
-			return new int[] { val, -1 };
-		
-		val = -100000;
-		int move = -1;
+	/**
+	 * Make this game a copy of another game's position and search budget,
+	 * ready to search on its own without touching the other game.
+	 */
+	void copyPosition(Game other) {
+		position = other.position;
+		mask = other.mask;
+		positionHigh = other.positionHigh;
+		maskHigh = other.maskHigh;
+		moves = other.moves;
+		System.arraycopy(other.xCounts, 0, xCounts, 0, xCounts.length);
+		System.arraycopy(other.oCounts, 0, oCounts, 0, oCounts.length);
+		evalScore = other.evalScore;
+		segmentScores = other.segmentScores;
+		xFours = other.xFours;
+		oFours = other.oFours;
+		deadline = other.deadline;
+		nodeLimit = other.nodeLimit - other.nodes;
+		nodes = 0;
+		cutoffs = 0;
+		aborted = false;
+		if (table != null)
+			table.newSearch();
+	}
 
-		for (int col : columns) {
+	/**
+	 * Set the number of threads deep bot searches are split over.
+	 * @param threads 1 or less keeps every search on the thread of its game
+	 */
+	static void configureSearchThreads(int threads) {
+		searchPool = threads > 1 ? new ForkJoinPool(threads) : null;
+	}
+
+	/**
+	 * Negamax search with alpha-beta pruning.
+	 * @param depth how many turns are left to look into the future
+	 * @param ply how many turns have been played since the root of the search
+	 * @return the score from the point of view of the side to move
+	 */
+	private int negamax(int depth, int ply, int alpha, int beta) {
+		// look at the clock every 1024 positions
+		if ((++nodes & 1023) == 0 && (System.nanoTime() > deadline || nodes > nodeLimit || stopRequested))
+			aborted = true;
+		if (aborted)
+			return 0;
+		int sign = (moves & 1) == 0 ? 1 : -1;
+		if (depth == 0)
+			return sign * staticEval();
+
+		// reuse a result of the same depth, deeper ones would change the score
+		long key = key();
+		int ttMove = -1;
+		int slot = table.probe(key);
+		if (slot >= 0) {
+			ttMove = table.move(slot);
+			if (table.depth(slot) == depth) {
+				int score = table.score(slot);
+				int bound = table.bound(slot);
+				if (bound == TranspositionTable.EXACT
+						|| (bound == TranspositionTable.LOWER && score >= beta)
+						|| (bound == TranspositionTable.UPPER && score <= alpha))
+					return score;
+			}
+		}
+		long shared = sharedProbe(key, depth);
+		if (shared != 0) {
+			if (ttMove < 0)
+				ttMove = SharedCache.move(shared);
+			if (SharedCache.depth(shared) == depth) {
+				int score = SharedCache.score(shared);
+				int bound = SharedCache.bound(shared);
+				if (bound == TranspositionTable.EXACT
+						|| (bound == TranspositionTable.LOWER && score >= beta)
+						|| (bound == TranspositionTable.UPPER && score <= alpha)) {
+					SharedCache.cache.used.increment();
+					table.store(key, depth, bound, SharedCache.move(shared), score);
+					return score;
+				}
+			}
+		}
+
+		int val = staticEval();
+		if (val == WIN || val == LOSS)
+			return sign * val;
+
+		int[] columns = moveBuffers[ply];
+		int count = orderMoves(columns, ply, ttMove);
+
+		if (count == 0)
+			return sign * val;
+
+		int alphaOrig = alpha;
+		int best = -INFINITY;
+		int move = -1;
+		for (int i = 0; i < count; i++) {
+			int col = columns[i];
 			placeToken(col);
-			currentPlayer = null;
-			int value = minMax(depth - 1)[0];
-			if (value > val) {
+			int value = -negamax(depth - 1, ply + 1, -beta, -alpha);
+			removeToken(col);
+			if (aborted)
+				return 0;
+			if (value > best) {
+				best = value;
 				move = col;
-				val = value;
+				if (value > alpha) {
+					alpha = value;
+					killers[ply] = col;
+				}
+				if (alpha >= beta) {
+					killers[ply] = col;
+					cutoffs++;
+					break;
+				}
 			}
-			removeToken(col);
-			currentPlayer = player1;
 		}
 
-		return new int[] { val, move };
+		int bound = best <= alphaOrig ? TranspositionTable.UPPER
+				: best >= beta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+		table.store(key, depth, bound, move, best);
+		sharedStore(key, depth, bound, move, best);
+		return best;
+	}
+
+	/**
+	 * Find a position in the server-wide cache. Only deep enough searches use the
+	 * cache, and only games evaluating with the window scores of the standard board.
+	 * @return the packed entry, or 0 if there is none
+	 */
+	private long sharedProbe(long key, int depth) {
+		SharedCache shared = SharedCache.cache;
+		if (shared == null || depth < SharedCache.MIN_DEPTH || segmentScores != SEGMENT_SCORES)
+			return 0;
+		return shared.probe(key);
+	}
+
+	private void sharedStore(long key, int depth, int bound, int move, int score) {
+		SharedCache shared = SharedCache.cache;
+		if (shared != null && depth >= SharedCache.MIN_DEPTH && segmentScores == SEGMENT_SCORES)
+			shared.store(key, depth, bound, move, score);
+	}
+
+	/**
+	 * Fill a buffer with the valid columns so that the move stored for this position
+	 * comes first, then the last best move at this ply, then the rest from the center outwards.
+	 * @return the number of columns written
+	 */
+	private int orderMoves(int[] columns, int ply, int ttMove) {
+		int count = 0;
+		int killer = killers[ply];
+		if (ttMove >= 0 && canPlay(ttMove))
+			columns[count++] = ttMove;
+		if (killer >= 0 && killer != ttMove && canPlay(killer))
+			columns[count++] = killer;
+		for (int col : variant.centerFirst) {
+			if (col != killer && col != ttMove && canPlay(col))
+				columns[count++] = col;
+		}
+		return count;
 	}
 
 	/**
 	 * Connecto-bot move logic
 	 */
 	public void botMove() throws IOException {
-		int col = -1;
-		int res[] = new int[] {-1, -1};
-		if (botLevel == 1) col = getRandomMove(); // choose moves at random
-		else if (botLevel == 2) res = minMax(2); // run minMax with depth 2
-		else if (botLevel == 3) res = minMax(3); // run minMax with depth 3 
-		else if (botLevel == 4) res = minMax(4); // run minMax with depth 4
-		else if (botLevel == 5) res = minMax(5); // run minMax with depth 5
-		
-		if (botLevel > 1) {
-			col = res[1];
-			if (res[0] == LOSS) {
-				player1.outToClient.writeBytes("I'm going to win... You can just give up now. :)\n"); // bot guaranteed to win, brag about it
+		playBotMove(chooseBotMove());
+	}
+
+	/**
+	 * Pick the bot's move without changing the board or talking to the player. The
+	 * solver and the search try their moves on a copy of the board, so that anyone
+	 * reading the board under the game's lock meanwhile only sees played moves.
+	 * Sets botProvedWin when the endgame solver proved that the bot wins.
+	 * @return the column to play, -1 if there is none
+	 */
+	public int chooseBotMove() {
+		botProvedWin = false;
+		long start = System.nanoTime();
+		long budget = LEVEL_BUDGET_MS[botLevel] * 1000000L;
+		int col = Ponder.finish(this); // the answer found on the player's time, if the player made the expected move
+		if (col < 0 && botLevel == 1) col = getRandomMove(); // choose moves at random
+		else if (col < 0 && usesBook()) col = book.lookup(key()); // play from the opening book while it knows the position
+
+		Game board = col < 0 && botLevel > 1 ? searchCopy() : null;
+		try {
+			col = searchBotMove(board, col, start, budget);
+		} finally {
+			if (board != null)
+				table = board.table; // the copy may have leased a table, which Ponder takes over
+		}
+		Metrics.recordBotMove(System.nanoTime() - start);
+		return col;
+	}
+
+	/**
+	 * Solve or search the bot's move on a copy of the board, unless it has one already.
+	 * @return the column to play, -1 if there is none
+	 */
+	private int searchBotMove(Game board, int col, long start, long budget) {
+		if (botLevel >= SOLVER_LEVEL && col < 0 && variant.cells - moves <= EndgameSolver.emptyCells) {
+			// few cells left, search to the end of the game for perfect play
+			EndgameSolver solver = variant.solvers.get();
+			if (solver.solve(board, start + budget)) {
+				col = solver.bestMove;
+				botProvedWin = solver.score > 0;
 			}
 		}
 		
+		if (botLevel > 1 && col < 0) {
+			// search up to botLevel moves ahead within the level's remaining time
+			long searchStart = System.nanoTime();
+			board.iterativeSearch(botLevel, budget - (searchStart - start), botNodes);
+			Metrics.recordSearch(board, System.nanoTime() - searchStart);
+			col = board.bestMove;
+			bestMove = board.bestMove;
+			depthReached = board.depthReached;
+			nodes = board.nodes;
+			cutoffs = board.cutoffs;
+		}
+		return col;
+	}
+
+	/**
+	 * Copy the board for the bot's solver and search, with the game's table and limits.
+	 */
+	private Game searchCopy() {
+		Game board = new Game(variant);
+		board.copyPosition(this);
+		board.table = table;
+		board.botLevel = botLevel;
+		board.botNodes = botNodes;
+		return board;
+	}
+
+	/**
+	 * Return the table the bot's search leased to the pool, once the bot has moved
+	 * and its Ponder, if any, has taken the table over.
+	 */
+	void releaseTable() {
+		if (table != null) {
+			TranspositionTable.release(table);
+			table = null;
+		}
+	}
+
+	/**
+	 * Check if the bot plays from the opening book, which is built for the standard board.
+	 */
+	boolean usesBook() {
+		return book != null && variant == Variant.STANDARD && botLevel >= book.level;
+	}
+
+	/**
+	 * Play the bot's move and send the result to the player.
+	 * @param col column picked by chooseBotMove
+	 */
+	public void playBotMove(int col) throws IOException {
+		if (botProvedWin) {
+			player1.send("I'm going to win... You can just give up now. :)\n"); // bot proved its win, brag about it
+		}
+
 		currentPlayer = null;
 		if (col >= 0) {
 			placeToken(col);
+			Journal.moved(this, col);
 		}
 
-		String boardString = boardToString();
+		byte[] board = boardBytes();
+		if (col >= 0)
+			Spectators.moved(this, board);
 
 		// check if won
 		if (isWin(col)) {
-			boardString = boardToString();
 
 			// send final board state
-			player1.outToClient.writeBytes(boardString);
+			player1.sendBoard(board);
 
 			// send game over messages
-			player1.outToClient.writeBytes("I win! HAHAHAHAHA\n");
-			player1.outToClient.writeBytes(END_GAME);
+			player1.send("I win! HAHAHAHAHA\n");
+			player1.send(END_GAME);
 			endGame = true;
+			Journal.ended(this);
 		} else if (isTie()) {
 			// send final board state
-			player1.outToClient.writeBytes(boardString);
+			player1.sendBoard(board);
 
 			// send game over messages
-			player1.outToClient.writeBytes("It's a tie!\n");
-			player1.outToClient.writeBytes(END_GAME);
+			player1.send("It's a tie!\n");
+			player1.send(END_GAME);
 			endGame = true;
+			Journal.ended(this);
 		}
 
 		currentPlayer = player1;
-		player1.outToClient.writeBytes(boardString);
-		player1.outToClient.writeBytes(YOUR_MOVE);
+		player1.sendBoard(board);
+		player1.send(YOUR_MOVE);
 	}
 
 	/**
@@ -293,21 +857,31 @@ public class Game {
 	 * @return
 	 */
 	public int getRandomMove() {
-		ArrayList<Integer> columns = getValidCols();
-		Random rand = new Random();
-		int col = columns.get(rand.nextInt(columns.size()));
+		int[] columns = moveBuffers[0];
+		int count = getValidCols(columns);
+		int col = columns[random.nextInt(count)];
 		return col;
 	}
 
 	/**
-	 * Place a token in a column on the board.
+	 * Place a token of the side to move in a column on the board.
 	 * @param col Column to place a token in
 	 */
 	public void placeToken(int col) {
-		int height = heights[col];
-		int row = 5 - height;
-		board[row][col] = currentPlayer == player1 ? 1 : 2;
-		heights[col]++;
+		if (col < variant.lowCols) {
+			long cell = (mask + variant.bottomMask(col)) & variant.columnMask(col);
+			updateWindows(Long.numberOfTrailingZeros(cell), (moves & 1) == 0, 1);
+			position ^= mask;
+			positionHigh ^= maskHigh;
+			mask |= cell;
+		} else {
+			long cell = (maskHigh + variant.bottomMask(col)) & variant.columnMask(col);
+			updateWindows(variant.highBase + Long.numberOfTrailingZeros(cell), (moves & 1) == 0, 1);
+			position ^= mask;
+			positionHigh ^= maskHigh;
+			maskHigh |= cell;
+		}
+		history[moves++] = col;
 	}
 
 	/**
@@ -315,10 +889,27 @@ public class Game {
 	 * @param col
 	 */
 	public void removeToken(int col) {
-		heights[col]--;
-		int height = heights[col];
-		int row = 5 - height;
-		board[row][col] = 0;
+		int index;
+		if (col < variant.lowCols) {
+			long cell = Long.highestOneBit(mask & variant.columnMask(col));
+			mask ^= cell;
+			index = Long.numberOfTrailingZeros(cell);
+		} else {
+			long cell = Long.highestOneBit(maskHigh & variant.columnMask(col));
+			maskHigh ^= cell;
+			index = variant.highBase + Long.numberOfTrailingZeros(cell);
+		}
+		position ^= mask;
+		positionHigh ^= maskHigh;
+		moves--;
+		updateWindows(index, (moves & 1) == 0, -1);
+	}
+
+	/**
+	 * Check if a column still has room for a token.
+	 */
+	public boolean canPlay(int col) {
+		return ((col < variant.lowCols ? mask : maskHigh) & variant.topMask(col)) == 0;
 	}
 
 	/**
@@ -327,109 +918,76 @@ public class Game {
 	 */
 	public ArrayList<Integer> getValidCols() {
 		ArrayList<Integer> columns = new ArrayList<Integer>();
-		for (int i = 0; i < heights.length; i++) {
-			if (heights[i] < 6) {
+		for (int i = 0; i < variant.cols; i++) {
+			if (canPlay(i)) {
 				columns.add(i);
 			}
 		}
 		return columns;
 	}
 
+	/**
+	 * Write all columns which are not full into a buffer, without allocating.
+	 * @param columns buffer with room for every column
+	 * @return the number of valid columns written
+	 */
+	public int getValidCols(int[] columns) {
+		int count = 0;
+		for (int i = 0; i < variant.cols; i++) {
+			if (canPlay(i)) {
+				columns[count++] = i;
+			}
+		}
+		return count;
+	}
+
 	/**
 	 * Check if the board is full.
 	 * @return true if the board is full, false otherwise.
 	 */
 	public boolean isTie() {
-		for (int i = 0; i < 7; i++) {
-			if (board[0][i] == 0) {
-				return false;
-			}
-		}
-		return true;
+		return mask == variant.fullBoard && maskHigh == variant.fullBoardHigh;
 	}
 
 	/**
 	 * Determine if the last move (indicated by col) resulted in a win.
+	 * The check covers every line of the player who just moved, so col is
+	 * only kept for callers.
 	 * @param col the column of the last move played
 	 * @return
 	 */
 	public boolean isWin(int col) {
-		int height = heights[col];
-		int row = 5 - height + 1;
-		int token = board[row][col];
-
-		int downRow = row + 1;
-		int upRow = row - 1;
-		int sumRow = 1;
-		while (downRow < 6 && board[downRow][col] == token) {
-			downRow++;
-			sumRow++;
-		}
-
-		while (upRow >= 0 && board[upRow][col] == token) {
-			upRow--;
-			sumRow++;
-		}
-
-		if (sumRow >= 4)
-			return true;
-
-		int leftCol = col - 1;
-		int rightCol = col + 1;
-		int sumCol = 1;
-		while (leftCol >= 0 && board[row][leftCol] == token) {
-			leftCol--;
-			sumCol++;
-		}
-
-		while (rightCol < 7 && board[row][rightCol] == token) {
-			rightCol++;
-			sumCol++;
-		}
-
-		if (sumCol >= 4)
-			return true;
-
-		leftCol = col - 1;
-		downRow = row + 1;
-		int sumPosDiagonal = 1;
-		while (leftCol >= 0 && downRow < 6 && board[downRow][leftCol] == token) {
-			leftCol--;
-			downRow++;
-			sumPosDiagonal++;
-		}
+		if (variant.wide)
+			return ((moves & 1) == 0 ? oFours : xFours) > 0;
+		return variant.isAlignment(position ^ mask);
+	}
 
-		rightCol = col + 1;
-		upRow = row - 1;
-		while (rightCol < 7 && upRow >= 0 && board[upRow][rightCol] == token) {
-			rightCol++;
-			upRow--;
-			sumPosDiagonal++;
-		}
-		if (sumPosDiagonal >= 4)
-			return true;
-
-		// Negative Diagonal
-		leftCol = col - 1;
-		upRow = row - 1;
-		int sumNegDiagonal = 1;
-		while (leftCol >= 0 && upRow >= 0 && board[upRow][leftCol] == token) {
-			leftCol--;
-			upRow--;
-			sumNegDiagonal++;
-		}
+	/**
+	 * Check if the side to move would win by playing a column.
+	 */
+	public boolean isWinningMove(int col) {
+		if (variant.wide)
+			return completesWindow(col);
+		return variant.isAlignment(position | ((mask + variant.bottomMask(col)) & variant.columnMask(col)));
+	}
 
-		rightCol = col + 1;
-		downRow = row + 1;
-		while (rightCol < 7 && downRow < 6 && board[downRow][rightCol] == token) {
-			rightCol++;
-			downRow++;
-			sumNegDiagonal++;
+	/**
+	 * Check if a token of the side to move in a column would fill a window its
+	 * tokens alone hold, for wide variants whose board is no single bitboard.
+	 */
+	private boolean completesWindow(int col) {
+		int cell;
+		if (col < variant.lowCols)
+			cell = Long.numberOfTrailingZeros((mask + variant.bottomMask(col)) & variant.columnMask(col));
+		else
+			cell = variant.highBase + Long.numberOfTrailingZeros((maskHigh + variant.bottomMask(col)) & variant.columnMask(col));
+		boolean isX = (moves & 1) == 0;
+		int[] own = isX ? xCounts : oCounts;
+		int[] other = isX ? oCounts : xCounts;
+		for (int w : variant.cellWindows[cell]) {
+			if (own[w] == variant.k - 1 && other[w] == 0)
+				return true;
 		}
-		if (sumNegDiagonal >= 4)
-			return true;
-
 		return false;
 	}
 }
-
@@ -0,0 +1,234 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+* The HeadlessClient class plays one game against the server without a person at the
+* keyboard. It speaks the same protocol as Connect4Client, text or binary, plays the
+* moves of a script and then random moves into columns that are not full, and
+* records how long the server took to answer. LoadGenerator runs many of them.
+*
+* Run on its own it plays one game and prints what the server sent:
+* java HeadlessClient [--host=127.0.0.1] [--mode=1|2] [--level=3] [--name=bob] [--moves=4,4,3] [--binary]
+*/
+
+public class HeadlessClient {
+	static final int PORT = 6789;
+	static final int TIMEOUT_MS = 120000;
+
+	String host = Connect4Client.SERVER_IP_ADDRESS;
+	int mode = 2; // 1: play another client, 2: play Connecto-bot
+	int level = 1;
+	String name = "";
+	int[] script = new int[0]; // columns 1 - 7 to play first
+	boolean binary;
+	int thinkMs; // pause before every move
+	boolean verbose; // print what the server sends
+	Random random = new Random();
+
+	// what happened, read by LoadGenerator once play returns
+	long connectNanos; // to open the socket
+	long connectedAt; // System.nanoTime when the socket opened
+	long pairingNanos = -1; // from picking a human opponent to being asked the name
+	long[] moveNanos = new long[Game.ROWS * Game.COLS]; // from sending a move to the server's answer
+	int moveCount;
+	int invalidMoves;
+	String result = ""; // the last message before END_GAME, or DISCONNECT
+
+	private int[] heights = new int[Game.COLS];
+	private int boardRow = -1; // row of the text board being read
+	private int played;
+	private long moveSent;
+
+	/**
+	 * Connect, play one game to the end, and close the connection.
+	 * @throws IOException if the connection fails or the server stops answering
+	 */
+	void play() throws IOException {
+		long start = System.nanoTime();
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, PORT), TIMEOUT_MS);
+			socket.setSoTimeout(TIMEOUT_MS);
+			socket.setTcpNoDelay(true);
+			connectedAt = System.nanoTime();
+			connectNanos = connectedAt - start;
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			BufferedReader lines = null;
+			DataInputStream frames = null;
+			if (binary) {
+				send(out, BinaryProtocol.REQUEST);
+				frames = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				// skip the text greeting, the server repeats it in a frame
+				int greeting;
+				while ((greeting = frames.read()) != '\n') {
+					if (greeting == -1)
+						throw new EOFException("Server closed the connection");
+				}
+			} else {
+				lines = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			}
+			long modeSent = 0;
+			String last = "";
+			while (true) {
+				String message = binary ? readFrame(frames) : readLine(lines);
+				if (message == null)
+					throw new EOFException("Server closed the connection");
+				if (moveSent != 0) {
+					moveNanos[moveCount++] = System.nanoTime() - moveSent;
+					moveSent = 0;
+				}
+				if (verbose)
+					System.out.println(message);
+				if (message.equals(Connect4Client.HUMAN_COMP)) {
+					send(out, mode);
+					modeSent = System.nanoTime();
+				} else if (message.equals(Connect4Client.BOT_LEVEL)) {
+					send(out, level);
+				} else if (message.equals(Connect4Client.YOUR_NAME)) {
+					if (mode == 1 && pairingNanos < 0)
+						pairingNanos = System.nanoTime() - modeSent;
+					send(out, name);
+				} else if (message.equals(Connect4Client.DUPLICATE_NAME)) {
+					name = name + random.nextInt(10);
+				} else if (message.equals(Connect4Client.YOUR_MOVE)) {
+					sendMove(out);
+				} else if (message.equals(Connect4Client.INVALID_MOVE)) {
+					invalidMoves++;
+					sendMove(out);
+				} else if (message.equals(Connect4Client.END_GAME)) {
+					result = last;
+					return;
+				} else if (message.equals(Connect4Client.DISCONNECT)) {
+					result = Connect4Client.DISCONNECT;
+					return;
+				} else if (message.endsWith("is full.")) {
+					invalidMoves++;
+				}
+				last = message;
+			}
+		} catch (SocketTimeoutException e) {
+			throw new IOException("Server did not answer in " + TIMEOUT_MS + " ms", e);
+		} finally {
+			socket.close();
+		}
+	}
+
+	private void sendMove(DataOutputStream out) throws IOException {
+		if (thinkMs > 0) {
+			try {
+				Thread.sleep(thinkMs);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+		int col = played < script.length ? script[played] - 1 : randomColumn();
+		played++;
+		send(out, (col + 1));
+		moveSent = System.nanoTime();
+	}
+
+	/**
+	 * Send a line in one write, as a person typing it would.
+	 */
+	private static void send(DataOutputStream out, Object line) throws IOException {
+		out.write((line + "\n").getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private int randomColumn() {
+		int open = 0;
+		for (int col = 0; col < Game.COLS; col++)
+			if (heights[col] < Game.ROWS)
+				open++;
+		int pick = random.nextInt(Math.max(open, 1));
+		for (int col = 0; col < Game.COLS; col++)
+			if (heights[col] < Game.ROWS && pick-- == 0)
+				return col;
+		return 0;
+	}
+
+	/**
+	 * Read a line of the text protocol, keeping track of the full columns from the board lines.
+	 */
+	private String readLine(BufferedReader in) throws IOException {
+		String line = in.readLine();
+		if (line == null || !line.startsWith("     | ")) {
+			boardRow = -1;
+			return line;
+		}
+		boardRow++;
+		for (int col = 0; col < Game.COLS; col++) {
+			// the board is printed from the top row down
+			if (line.charAt(7 + 4 * col) != ' ')
+				heights[col] = Math.max(heights[col], Game.ROWS - boardRow);
+		}
+		return line;
+	}
+
+	/**
+	 * Read a frame of the binary protocol and return what the text protocol would have sent,
+	 * except that a board is returned as a one-line summary.
+	 */
+	private String readFrame(DataInputStream in) throws IOException {
+		int length;
+		try {
+			length = in.readUnsignedShort();
+		} catch (EOFException e) {
+			return null;
+		}
+		byte[] frame = new byte[length];
+		in.readFully(frame);
+		int type = frame[0];
+		if (type == BinaryProtocol.TEXT)
+			return new String(frame, 1, length - 1, StandardCharsets.UTF_8);
+		if (type == BinaryProtocol.MOVES) {
+			for (int i = 2; i < length; i++)
+				heights[frame[i]]++;
+			return "MOVES " + (length - 2);
+		}
+		return Connect4Client.FRAME_KEYWORDS[type];
+	}
+
+	public static void main(String[] argv) throws IOException {
+		HeadlessClient client = new HeadlessClient();
+		client.verbose = true;
+		for (String arg : argv) {
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("--host=")) {
+				client.host = value;
+			} else if (arg.startsWith("--mode=")) {
+				client.mode = Integer.parseInt(value);
+			} else if (arg.startsWith("--level=")) {
+				client.level = Integer.parseInt(value);
+			} else if (arg.startsWith("--name=")) {
+				client.name = value;
+			} else if (arg.startsWith("--moves=")) {
+				client.script = parseMoves(value);
+			} else if (arg.startsWith("--think-ms=")) {
+				client.thinkMs = Integer.parseInt(value);
+			} else if (arg.equals("--binary")) {
+				client.binary = true;
+			} else {
+				System.out.println("Unknown option: " + arg);
+			}
+		}
+		client.play();
+	}
+
+	static int[] parseMoves(String moves) {
+		String[] cols = moves.split(",");
+		int[] script = new int[cols.length];
+		for (int i = 0; i < cols.length; i++)
+			script[i] = Integer.parseInt(cols[i].trim());
+		return script;
+	}
+}
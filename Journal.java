@@ -0,0 +1,456 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+* The Journal class records the games of the server in an append-only, memory-mapped
+* file, so that they survive a crash of the server: the start of every game with its
+* players and bot level, every move and the end of the game. When the server starts
+* again it reads the file back, and a player who comes back with the same name (and
+* in a game between two people, against the same opponent) resumes their unfinished
+* game where it stopped.
+*
+* Recording a move only copies a few bytes into the mapped file, so the thread that
+* plays the move never waits for the disk. A sync thread forces what was written to
+* the disk every SYNC_MS milliseconds: a crash of the machine loses at most the last
+* interval, a crash of the server process alone loses nothing.
+*/
+
+public class Journal {
+	static final int MAGIC = 0x43344a4e; // "C4JN"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 8;
+	// record types; every record starts with its type and length in one int, then the game id
+	static final int GAME = 1; // bot level (0 between two people), names of the first and the second player
+	static final int MOVE = 2; // ply and column
+	static final int END = 3;
+	static final int RECORD_BYTES = 4 + 8;
+	static final int MOVE_BYTES = RECORD_BYTES + 2;
+	static final long SYNC_MS = 50;
+
+	// the journal of the server, null when it runs without one
+	static Journal journal;
+
+	final Path path;
+	int capacity;
+	volatile MappedByteBuffer buffer;
+	final AtomicInteger end = new AtomicInteger(); // where the next record goes
+	// appends take the read lock and run in parallel; only rewriting the file takes the write lock
+	final ReentrantReadWriteLock rewriting = new ReentrantReadWriteLock();
+	boolean failed; // the file could not be rewritten, nothing more is recorded
+	final AtomicLong nextId = new AtomicLong();
+	// games recorded in the file that are still running, by id, with the moves recorded so far
+	final ConcurrentHashMap<Long, Entry> live = new ConcurrentHashMap<Long, Entry>();
+	// unfinished games read from the file at start that wait for their players, by resumeKey
+	final ConcurrentHashMap<String, Entry> unfinished = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * A game as recorded in the file.
+	 */
+	static class Entry {
+		long id;
+		int level;
+		String name1;
+		String name2;
+		int[] cols = new int[Game.ROWS * Game.COLS];
+		// written after the move it counts, so that a rewrite reading it sees the moves
+		volatile int count;
+
+		/**
+		 * Start the entry of a running game from its players and moves. Call with the
+		 * game's lock held; moved adds the moves played afterwards.
+		 */
+		static Entry of(long id, Game game) {
+			Entry entry = new Entry();
+			entry.id = id;
+			entry.level = game.botEnabled ? game.botLevel : 0;
+			entry.name1 = game.player1.name;
+			entry.name2 = game.botEnabled ? "" : game.player2.name;
+			entry.count = Math.min(game.moves, entry.cols.length);
+			System.arraycopy(game.history, 0, entry.cols, 0, entry.count);
+			return entry;
+		}
+
+		/**
+		 * Add a move played in the game. Only the thread holding the game's lock adds moves.
+		 */
+		void add(int col) {
+			if (count < cols.length) {
+				cols[count] = col;
+				count = count + 1;
+			}
+		}
+
+		/**
+		 * Copy of the moves recorded so far, for a rewrite that runs while the game goes on.
+		 * A move that is missed here is appended again after the rewrite, and the last
+		 * record of a ply wins.
+		 */
+		Entry snapshot() {
+			Entry copy = new Entry();
+			copy.id = id;
+			copy.level = level;
+			copy.name1 = name1;
+			copy.name2 = name2;
+			int moves = count;
+			System.arraycopy(cols, 0, copy.cols, 0, moves);
+			copy.count = moves;
+			return copy;
+		}
+
+		/**
+		 * Check that the moves make a legal game that is not over yet.
+		 */
+		boolean playable() {
+			Game game = new Game();
+			game.start(true);
+			for (int i = 0; i < count; i++) {
+				int col = cols[i];
+				if (col < 0 || col >= Game.COLS || !game.canPlay(col))
+					return false;
+				game.placeToken(col);
+				if (game.isWin(col))
+					return false;
+			}
+			return !game.isTie();
+		}
+
+		int bytes() {
+			return length(GAME, name1, name2) + count * MOVE_BYTES;
+		}
+
+		int write(ByteBuffer out, int at) {
+			at = put(out, at, GAME, id, level, 0, name1, name2);
+			for (int i = 0; i < count; i++)
+				at = put(out, at, MOVE, id, i, cols[i], null, null);
+			return at;
+		}
+	}
+
+	Journal(Path initPath, int initCapacity) {
+		path = initPath;
+		capacity = initCapacity;
+	}
+
+	/**
+	 * Open the journal of the server: read back the unfinished games of the file,
+	 * rewrite it with only those and start the sync thread.
+	 * @param megabytes size of the mapped file; it is rewritten without the finished games when full
+	 */
+	static void open(String fileName, int megabytes) throws IOException {
+		Journal opened = new Journal(Paths.get(fileName), megabytes << 20);
+		opened.recover();
+		opened.rewrite();
+		Thread sync = new Thread(opened::sync, "journal-sync");
+		sync.setDaemon(true);
+		sync.start();
+		journal = opened;
+	}
+
+	/**
+	 * Record a game whose players all have their names, or resume the unfinished game
+	 * of the same players from the file. A resumed game continues from its last move,
+	 * with the players in their old order and the old bot level. Only games on the
+	 * standard board are recorded.
+	 */
+	static void gameReady(Game game) {
+		if (journal != null && game.variant == Variant.STANDARD)
+			journal.ready(game);
+	}
+
+	/**
+	 * Record the move just played in a game.
+	 */
+	static void moved(Game game, int col) {
+		if (journal == null || game.journalId < 0)
+			return;
+		Entry entry = journal.live.get(game.journalId);
+		if (entry != null)
+			entry.add(col);
+		journal.append(MOVE, game.journalId, game.moves - 1, col, null, null);
+	}
+
+	/**
+	 * Record that a game is over, because it was won or tied or a player left.
+	 */
+	static void ended(Game game) {
+		if (journal != null && game != null && game.journalId >= 0 && journal.live.remove(game.journalId) != null)
+			journal.append(END, game.journalId, 0, 0, null, null);
+	}
+
+	private void ready(Game game) {
+		String name1 = game.player1.name;
+		String name2 = game.botEnabled ? "" : game.player2.name;
+		Entry entry = null;
+		boolean swapped = false;
+		if (resumable(name1) && (game.botEnabled || resumable(name2))) {
+			entry = unfinished.remove(resumeKey(game.botEnabled ? 1 : 0, name1, name2));
+			if (entry == null && !game.botEnabled) {
+				entry = unfinished.remove(resumeKey(0, name2, name1));
+				swapped = entry != null;
+			}
+		}
+		game.lock.lock();
+		try {
+			if (entry == null) {
+				game.journalId = nextId.getAndIncrement();
+				live.put(game.journalId, Entry.of(game.journalId, game));
+				append(GAME, game.journalId, game.botEnabled ? game.botLevel : 0, 0, name1, name2);
+				return;
+			}
+			if (swapped) {
+				// the player who moved first before the crash moves first again
+				Player first = game.player2;
+				game.player2 = game.player1;
+				game.player1 = first;
+				game.player1.firstPlayer = true;
+				game.player2.firstPlayer = false;
+			}
+			if (game.botEnabled)
+				game.botLevel = entry.level;
+			for (int i = 0; i < entry.count; i++)
+				game.placeToken(entry.cols[i]);
+			// on the bot's turn nobody may move until the bot has
+			game.currentPlayer = (game.moves & 1) == 0 ? game.player1 : game.botEnabled ? null : game.player2;
+			game.resumedMoves = game.moves;
+			game.journalId = entry.id;
+			live.put(entry.id, Entry.of(entry.id, game));
+		} finally {
+			game.lock.unlock();
+		}
+		System.out.println("Resumed game " + entry.id + " of " + name1 + (game.botEnabled ? "" : " and " + name2)
+				+ " after " + entry.count + " moves");
+	}
+
+	/**
+	 * Only named players can resume a game; default names are shared by everyone.
+	 */
+	static boolean resumable(String name) {
+		return name.length() > 0 && !name.equals("Player 1") && !name.equals("Player 2");
+	}
+
+	static String resumeKey(int level, String name1, String name2) {
+		return level > 0 ? "bot\n" + name1 : name1 + "\n" + name2;
+	}
+
+	/**
+	 * Append a record, rewriting the file first if it is full.
+	 */
+	private void append(int type, long id, int a, int b, String name1, String name2) {
+		int length = length(type, name1, name2);
+		while (!failed) {
+			MappedByteBuffer full;
+			rewriting.readLock().lock();
+			try {
+				int at = reserve(length);
+				if (at >= 0) {
+					put(buffer, at, type, id, a, b, name1, name2);
+					return;
+				}
+				full = buffer;
+			} finally {
+				rewriting.readLock().unlock();
+			}
+			rewriteFull(full);
+		}
+	}
+
+	/**
+	 * Claim room for a record at the end of the file.
+	 * @return where to write it, or -1 if the file is full
+	 */
+	private int reserve(int length) {
+		while (true) {
+			int at = end.get();
+			// keep a 0 after the last record, where reading stops
+			if (at + length > capacity - 4)
+				return -1;
+			if (end.compareAndSet(at, at + length))
+				return at;
+		}
+	}
+
+	private void rewriteFull(MappedByteBuffer full) {
+		rewriting.writeLock().lock();
+		try {
+			if (buffer == full && !failed) {
+				rewrite();
+				System.out.println("Journal was full, rewritten with " + live.size() + " running games");
+			}
+		} catch (IOException e) {
+			System.out.println("Journal stopped: " + e);
+			failed = true;
+		} finally {
+			rewriting.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replace the file with a new one holding only the unfinished games, written to
+	 * the side and renamed over the old file. Called at start or with the write lock.
+	 */
+	private void rewrite() throws IOException {
+		ArrayList<Entry> games = new ArrayList<Entry>(unfinished.values());
+		for (Entry running : live.values())
+			games.add(running.snapshot());
+		long needed = HEADER_BYTES + 4;
+		for (Entry game : games)
+			needed += game.bytes();
+		// keep at least half of the file free for new records
+		while (needed * 2 > capacity && capacity < (1 << 30))
+			capacity *= 2;
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.deleteIfExists(temp);
+		MappedByteBuffer next;
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			next = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		}
+		next.putInt(0, MAGIC).putInt(4, VERSION);
+		int at = HEADER_BYTES;
+		for (Entry game : games)
+			at = game.write(next, at);
+		next.force();
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		buffer = next;
+		end.set(at);
+	}
+
+	/**
+	 * Read back the games of an existing file and keep the unfinished ones to resume.
+	 */
+	private void recover() throws IOException {
+		if (!Files.exists(path))
+			return;
+		MappedByteBuffer old;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			old = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (old.capacity() < HEADER_BYTES || old.getInt(0) != MAGIC || old.getInt(4) != VERSION)
+			throw new IOException(path + " is not a game journal");
+		HashMap<Long, Entry> games = new HashMap<Long, Entry>();
+		long lastId = -1;
+		int records = 0;
+		int at = HEADER_BYTES;
+		while (at + RECORD_BYTES <= old.capacity()) {
+			int header = old.getInt(at);
+			int type = header >>> 24;
+			int length = header & 0xFFFFFF;
+			// the records end at the first header never written
+			if (header == 0 || length < RECORD_BYTES || at + length > old.capacity())
+				break;
+			long id = old.getLong(at + 4);
+			lastId = Math.max(lastId, id);
+			if (type == GAME) {
+				Entry entry = new Entry();
+				entry.id = id;
+				entry.level = old.get(at + 12);
+				entry.name1 = getName(old, at + 13);
+				entry.name2 = getName(old, at + 15 + (old.getShort(at + 13) & 0xFFFF));
+				games.put(id, entry);
+			} else if (type == MOVE) {
+				Entry entry = games.get(id);
+				int ply = old.get(at + 12);
+				if (entry != null && ply >= 0 && ply < entry.cols.length) {
+					entry.cols[ply] = old.get(at + 13);
+					entry.count = Math.max(entry.count, ply + 1);
+				}
+			} else if (type == END) {
+				games.remove(id);
+			}
+			at += length;
+			records++;
+		}
+		nextId.set(lastId + 1);
+		for (Entry entry : games.values()) {
+			if (entry.playable() && resumable(entry.name1) && (entry.level > 0 || resumable(entry.name2)))
+				unfinished.put(resumeKey(entry.level, entry.name1, entry.name2), entry);
+		}
+		System.out.println("Journal " + path + ": read " + records + " records, " + unfinished.size()
+				+ " unfinished games to resume");
+	}
+
+	/**
+	 * Force new records to the disk every SYNC_MS. Records that were claimed but not
+	 * complete yet at one sync are forced by the next.
+	 */
+	private void sync() {
+		MappedByteBuffer synced = null;
+		int syncedEnd = -1;
+		boolean again = false;
+		while (true) {
+			try {
+				Thread.sleep(SYNC_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			MappedByteBuffer current = buffer;
+			int written = end.get();
+			if (current != synced || written != syncedEnd || again) {
+				again = current != synced || written != syncedEnd;
+				current.force();
+				synced = current;
+				syncedEnd = written;
+			}
+		}
+	}
+
+	static int length(int type, String name1, String name2) {
+		if (type == GAME)
+			return RECORD_BYTES + 1 + 2 + utf8Length(name1) + 2 + utf8Length(name2);
+		return type == MOVE ? MOVE_BYTES : RECORD_BYTES;
+	}
+
+	/**
+	 * Write a record. Its header goes last, so that a reader never sees half a record.
+	 * @param a ply of a move, or bot level of a game
+	 * @param b column of a move
+	 * @return where the next record goes
+	 */
+	static int put(ByteBuffer out, int at, int type, long id, int a, int b, String name1, String name2) {
+		int length = length(type, name1, name2);
+		out.putLong(at + 4, id);
+		if (type == GAME) {
+			out.put(at + 12, (byte) a);
+			putName(out, putName(out, at + 13, name1), name2);
+		} else if (type == MOVE) {
+			out.put(at + 12, (byte) a);
+			out.put(at + 13, (byte) b);
+		}
+		out.putInt(at, type << 24 | length);
+		return at + length;
+	}
+
+	private static int putName(ByteBuffer out, int at, String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(bytes.length, 0xFFFF);
+		out.putShort(at, (short) length);
+		for (int i = 0; i < length; i++)
+			out.put(at + 2 + i, bytes[i]);
+		return at + 2 + length;
+	}
+
+	private static String getName(ByteBuffer in, int at) {
+		byte[] bytes = new byte[in.getShort(at) & 0xFFFF];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = in.get(at + 2 + i);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int utf8Length(String name) {
+		return Math.min(name.getBytes(StandardCharsets.UTF_8).length, 0xFFFF);
+	}
+}
@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* The LoadGenerator class plays many games against a running server at once with
+* HeadlessClients: pairs of clients that play each other, and bot games at each
+* level. When every game is over it reports how fast the connections opened, how
+* long players waited to be paired, the move round-trip times and the errors.
+*
+* java LoadGenerator [--pairs=500] [--bots=20] [--levels=1-5] [--think-ms=0] [--ramp-ms=0] [--host=127.0.0.1] [--binary]
+*
+* --bots is the number of bot games at each level. --ramp-ms spreads the starts of
+* the clients evenly over that time instead of starting them all at once. Each
+* client runs on a virtual thread on Java 21 and later, and on a platform thread before.
+*/
+
+public class LoadGenerator {
+
+	int pairs = 500;
+	int botsPerLevel = 20;
+	int minLevel = 1;
+	int maxLevel = 5;
+	int thinkMs;
+	int rampMs; // spread the starts of the clients over this time, 0 starts them at once
+	String host = Connect4Client.SERVER_IP_ADDRESS;
+	boolean binary;
+
+	ArrayList<HeadlessClient> clients = new ArrayList<HeadlessClient>();
+	AtomicInteger connectErrors = new AtomicInteger();
+	AtomicInteger gameErrors = new AtomicInteger();
+
+	public static void main(String[] argv) throws InterruptedException {
+		LoadGenerator load = new LoadGenerator();
+		for (String arg : argv) {
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("--pairs=")) {
+				load.pairs = Integer.parseInt(value);
+			} else if (arg.startsWith("--bots=")) {
+				load.botsPerLevel = Integer.parseInt(value);
+			} else if (arg.startsWith("--levels=")) {
+				String[] range = value.split("-");
+				load.minLevel = Integer.parseInt(range[0]);
+				load.maxLevel = Integer.parseInt(range[range.length - 1]);
+			} else if (arg.startsWith("--think-ms=")) {
+				load.thinkMs = Integer.parseInt(value);
+			} else if (arg.startsWith("--ramp-ms=")) {
+				load.rampMs = Integer.parseInt(value);
+			} else if (arg.startsWith("--host=")) {
+				load.host = value;
+			} else if (arg.equals("--binary")) {
+				load.binary = true;
+			} else {
+				System.out.println("Unknown option: " + arg);
+			}
+		}
+		load.run();
+	}
+
+	/**
+	 * Start every client, at once or over rampMs, wait for all the games to end, and print the report.
+	 */
+	void run() throws InterruptedException {
+		for (int i = 0; i < 2 * pairs; i++) {
+			HeadlessClient client = newClient("p" + i);
+			client.mode = Player.HUMAN;
+			clients.add(client);
+		}
+		for (int level = minLevel; level <= maxLevel; level++) {
+			for (int i = 0; i < botsPerLevel; i++) {
+				HeadlessClient client = newClient("b" + level + "_" + i);
+				client.mode = Player.COMP;
+				client.level = level;
+				clients.add(client);
+			}
+		}
+
+		ThreadFactory threads = Connect4Server.virtualThreadFactory();
+		CountDownLatch done = new CountDownLatch(clients.size());
+		long start = System.nanoTime();
+		for (int i = 0; i < clients.size(); i++) {
+			HeadlessClient client = clients.get(i);
+			long wait = start + (long) rampMs * 1000000L * i / clients.size() - System.nanoTime();
+			if (wait > 0)
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			threads.newThread(() -> {
+				try {
+					client.play();
+				} catch (IOException e) {
+					if (client.connectNanos == 0) {
+						connectErrors.incrementAndGet();
+					} else {
+						gameErrors.incrementAndGet();
+					}
+					client.result = "error: " + e.getMessage();
+				} finally {
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		long end = System.nanoTime();
+		report(start, end);
+	}
+
+	private HeadlessClient newClient(String name) {
+		HeadlessClient client = new HeadlessClient();
+		client.host = host;
+		client.name = name;
+		client.binary = binary;
+		client.thinkMs = thinkMs;
+		return client;
+	}
+
+	private void report(long start, long end) {
+		int opened = 0;
+		int disconnects = 0;
+		int invalidMoves = 0;
+		long[] connect = new long[clients.size()];
+		long[] pairing = new long[clients.size()];
+		int pairingCount = 0;
+		long lastConnected = start;
+		for (HeadlessClient client : clients) {
+			if (client.connectNanos > 0) {
+				connect[opened++] = client.connectNanos;
+				lastConnected = Math.max(lastConnected, client.connectedAt);
+			}
+			if (client.pairingNanos >= 0)
+				pairing[pairingCount++] = client.pairingNanos;
+			if (client.result.equals(Connect4Client.DISCONNECT))
+				disconnects++;
+			invalidMoves += client.invalidMoves;
+		}
+		double seconds = (end - start) / 1e9;
+		System.out.println("Sessions: " + clients.size() + " (" + 2 * pairs + " in human games, "
+				+ (clients.size() - 2 * pairs) + " in bot games), done in " + String.format("%.1f", seconds) + " s");
+		double connectSeconds = Math.max(lastConnected - start, 1) / 1e9;
+		System.out.println("Connections: " + opened + " opened in " + String.format("%.2f", connectSeconds) + " s, "
+				+ String.format("%.0f", opened / connectSeconds) + " per second");
+		System.out.println("Errors: " + connectErrors + " failed connections, " + gameErrors + " games broken off, "
+				+ disconnects + " opponent disconnects, " + invalidMoves + " rejected moves");
+		System.out.println(percentiles("Connect time", connect, opened));
+		System.out.println(percentiles("Pairing latency", pairing, pairingCount));
+		System.out.println(percentiles("Move round trip, human games", moveTimes(0), -1));
+		for (int level = minLevel; level <= maxLevel; level++)
+			System.out.println(percentiles("Move round trip, bot level " + level, moveTimes(level), -1));
+	}
+
+	/**
+	 * Collect the move round-trip times of the human games (level 0) or of the bot games of a level.
+	 */
+	private long[] moveTimes(int level) {
+		int count = 0;
+		for (HeadlessClient client : clients)
+			if (isLevel(client, level))
+				count += client.moveCount;
+		long[] times = new long[count];
+		int i = 0;
+		for (HeadlessClient client : clients) {
+			if (isLevel(client, level)) {
+				System.arraycopy(client.moveNanos, 0, times, i, client.moveCount);
+				i += client.moveCount;
+			}
+		}
+		return times;
+	}
+
+	private static boolean isLevel(HeadlessClient client, int level) {
+		return level == 0 ? client.mode == Player.HUMAN : client.mode == Player.COMP && client.level == level;
+	}
+
+	/**
+	 * Format the 50th, 90th, 99th percentiles and the maximum of the first count times, in milliseconds.
+	 * A count of -1 uses the whole array.
+	 */
+	static String percentiles(String label, long[] nanos, int count) {
+		if (count < 0)
+			count = nanos.length;
+		if (count == 0)
+			return label + ": none";
+		long[] sorted = Arrays.copyOf(nanos, count);
+		Arrays.sort(sorted);
+		return String.format("%s (%d): p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms", label, count,
+				percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99), sorted[count - 1] / 1e6);
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(index, 0)] / 1e6;
+	}
+}
@@ -0,0 +1,80 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+* The Matchmaker class pairs players who want to play another person. Players never
+* wait in line behind each other: whoever joins takes the waiting player if there is
+* one, or becomes the waiting player. The waiting player is signalled through its
+* paired future as soon as an opponent joins, so there is no polling. Players are
+* only paired with players who picked the same board, each board having its own
+* waiting player.
+*/
+
+public class Matchmaker {
+
+	// the player waiting for an opponent on each board, or null
+	static final ConcurrentHashMap<Variant, AtomicReference<Player>> waiting = new ConcurrentHashMap<Variant, AtomicReference<Player>>();
+
+	/**
+	 * Pair a player with the player waiting on the same board, or make them the
+	 * waiting player. The first of the two players plays X and owns the game.
+	 * @return the game if the player was paired right away, otherwise null, and
+	 *         player.paired completes when an opponent joins
+	 */
+	static Game join(Player player, Variant variant) {
+		AtomicReference<Player> waiting = Matchmaker.waiting.computeIfAbsent(variant, v -> new AtomicReference<Player>());
+		Game game = null;
+		while (true) {
+			Player other = waiting.get();
+			if (other == null) {
+				if (game == null) {
+					game = new Game(variant);
+					game.player1 = player;
+					player.game = game;
+					player.firstPlayer = true;
+				}
+				if (waiting.compareAndSet(null, player))
+					return null;
+			} else if (waiting.compareAndSet(other, null)) {
+				// If there is another player waiting, pair them together and start the game
+				player.firstPlayer = false;
+				player.game = other.game;
+				player.game.lock.lock();
+				try {
+					player.game.player2 = player;
+					other.opponent = player;
+					player.opponent = other;
+					player.game.start(false);
+					Metrics.gameStarted(player.game);
+				} finally {
+					player.game.lock.unlock();
+				}
+				other.paired.complete(player.game);
+				return player.game;
+			}
+		}
+	}
+
+	/**
+	 * Stop waiting for an opponent, e.g. because the player disconnected.
+	 * @return true if the player was waiting
+	 */
+	static boolean leave(Player player) {
+		if (player.game == null)
+			return false;
+		AtomicReference<Player> waiting = Matchmaker.waiting.get(player.game.variant);
+		return waiting != null && waiting.compareAndSet(player, null);
+	}
+
+	/**
+	 * Number of players waiting for an opponent, over every board.
+	 */
+	static int waitingPlayers() {
+		int count = 0;
+		for (AtomicReference<Player> waiting : Matchmaker.waiting.values()) {
+			if (waiting.get() != null)
+				count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,374 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+* The Metrics class counts what the bot and the server are doing: the bot's searches
+* (positions, depth, time, cutoffs, table hits), the shared cache, the connections, the waiting
+* players, the running games by mode and level, the spectators, and the moves played. Start it with
+* the server's --metrics-port option to read the numbers through JMX and as plain
+* text from http://127.0.0.1:port/metrics.
+*
+* Until then every record method returns at once. The search itself only counts
+* into fields of its Game, which are recorded here once per bot move.
+*/
+
+public class Metrics implements MetricsMBean {
+	static final int MAX_LEVEL = Game.MAX_BOT_LEVEL;
+
+	// set once at server start, before any game
+	static boolean enabled;
+
+	static final LongAdder searches = new LongAdder();
+	static final LongAdder searchNodes = new LongAdder();
+	static final LongAdder searchDepths = new LongAdder();
+	static final LongAdder searchCutoffs = new LongAdder();
+	static final LongAdder tableProbes = new LongAdder();
+	static final LongAdder tableHits = new LongAdder();
+	static final Histogram searchTime = new Histogram();
+	static final Histogram botMoveTime = new Histogram(); // book, solver or search, whichever played
+	static final Histogram humanMoveTime = new Histogram(); // handling a human's move, sending included
+
+	static final LongAdder connectionsOpened = new LongAdder();
+	static final LongAdder connectionsClosed = new LongAdder();
+	// running games: index 0 for games between two people, otherwise the bot level
+	static final AtomicIntegerArray activeGames = new AtomicIntegerArray(MAX_LEVEL + 1);
+	static final LongAdder moves = new LongAdder();
+	static final Rate moveRate = new Rate();
+	static final LongAdder ponders = new LongAdder(); // bot moves the bot pondered for
+	static final LongAdder ponderHits = new LongAdder(); // of those, moves answered with the pondered move
+
+	/**
+	 * Start recording, register the JMX bean and serve the text endpoint on the given local port.
+	 */
+	static void start(int port) throws Exception {
+		enabled = true;
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName("Connect4:type=Metrics"));
+		HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.createContext("/metrics", exchange -> {
+			byte[] body = render().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		http.start();
+		System.out.println("Metrics at http://127.0.0.1:" + port + "/metrics");
+	}
+
+	/**
+	 * Record a finished bot search.
+	 */
+	static void recordSearch(Game game, long nanos) {
+		if (!enabled)
+			return;
+		searches.increment();
+		searchNodes.add(game.nodes);
+		searchDepths.add(game.depthReached);
+		searchCutoffs.add(game.cutoffs);
+		tableProbes.add(game.table.probes);
+		tableHits.add(game.table.hits);
+		searchTime.record(nanos);
+	}
+
+	static void recordBotMove(long nanos) {
+		if (!enabled)
+			return;
+		botMoveTime.record(nanos);
+		moveMade();
+	}
+
+	static void recordHumanMove(long nanos) {
+		if (!enabled)
+			return;
+		humanMoveTime.record(nanos);
+		moveMade();
+	}
+
+	/**
+	 * Record a bot move after pondering, and whether the player made a pondered reply.
+	 */
+	static void recordPonder(boolean hit) {
+		if (!enabled)
+			return;
+		ponders.increment();
+		if (hit)
+			ponderHits.increment();
+	}
+
+	private static void moveMade() {
+		moves.increment();
+		moveRate.mark();
+	}
+
+	static void connectionOpened() {
+		if (enabled)
+			connectionsOpened.increment();
+	}
+
+	static void connectionClosed() {
+		if (enabled)
+			connectionsClosed.increment();
+	}
+
+	/**
+	 * Count a game as running from when both sides are known.
+	 */
+	static void gameStarted(Game game) {
+		if (!enabled)
+			return;
+		game.metricsSlot = game.botEnabled ? game.botLevel : 0;
+		activeGames.incrementAndGet(game.metricsSlot);
+	}
+
+	/**
+	 * Stop counting a game. Called when the connection of its first player closes,
+	 * which every game ends with.
+	 */
+	static void gameEnded(Game game) {
+		if (!enabled || game == null)
+			return;
+		game.lock.lock();
+		try {
+			if (game.metricsSlot >= 0)
+				activeGames.decrementAndGet(game.metricsSlot);
+			game.metricsSlot = -1;
+		} finally {
+			game.lock.unlock();
+		}
+	}
+
+	/**
+	 * All the metrics as text, one "name value" line each; histograms as
+	 * cumulative counts of values up to each bucket's bound in microseconds.
+	 */
+	static String render() {
+		StringBuilder out = new StringBuilder();
+		line(out, "connect4_search_total", searches.sum());
+		line(out, "connect4_search_nodes_total", searchNodes.sum());
+		line(out, "connect4_search_depth_total", searchDepths.sum());
+		line(out, "connect4_search_cutoffs_total", searchCutoffs.sum());
+		line(out, "connect4_table_probes_total", tableProbes.sum());
+		line(out, "connect4_table_hits_total", tableHits.sum());
+		line(out, "connect4_tables", TranspositionTable.pooled.get());
+		line(out, "connect4_search_queue_depth", SearchExecutor.queueDepth());
+		line(out, "connect4_searches_active", SearchExecutor.activeSearches());
+		searchTime.render(out, "connect4_search_micros");
+		botMoveTime.render(out, "connect4_bot_move_micros");
+		humanMoveTime.render(out, "connect4_human_move_micros");
+		line(out, "connect4_connections_opened_total", connectionsOpened.sum());
+		line(out, "connect4_connections_active", connectionsOpened.sum() - connectionsClosed.sum());
+		line(out, "connect4_players_waiting", Matchmaker.waitingPlayers());
+		line(out, "connect4_games_active{mode=\"human\"}", activeGames.get(0));
+		for (int level = 1; level <= MAX_LEVEL; level++)
+			line(out, "connect4_games_active{mode=\"bot\",level=\"" + level + "\"}", activeGames.get(level));
+		line(out, "connect4_spectators", Spectators.watching.get());
+		line(out, "connect4_spectator_boards_skipped_total", Spectators.skipped.sum());
+		line(out, "connect4_moves_total", moves.sum());
+		line(out, "connect4_ponder_total", ponders.sum());
+		line(out, "connect4_ponder_hits_total", ponderHits.sum());
+		SharedCache shared = SharedCache.cache;
+		if (shared != null) {
+			line(out, "connect4_shared_cache_probes_total", shared.probes.sum());
+			line(out, "connect4_shared_cache_hits_total", shared.hits.sum());
+			line(out, "connect4_shared_cache_used_total", shared.used.sum());
+			line(out, "connect4_shared_cache_stores_total", shared.stores.sum());
+			line(out, "connect4_shared_cache_evictions_total", shared.evictions.sum());
+		}
+		out.append("connect4_moves_per_second ").append(String.format("%.1f", moveRate.perSecond())).append('\n');
+		return out.toString();
+	}
+
+	private static void line(StringBuilder out, String name, long value) {
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	public long getSearches() {
+		return searches.sum();
+	}
+
+	public long getSearchNodes() {
+		return searchNodes.sum();
+	}
+
+	public long getSearchCutoffs() {
+		return searchCutoffs.sum();
+	}
+
+	public double getTableHitRate() {
+		long probes = tableProbes.sum();
+		return probes == 0 ? 0 : (double) tableHits.sum() / probes;
+	}
+
+	public double getAverageSearchDepth() {
+		long count = searches.sum();
+		return count == 0 ? 0 : (double) searchDepths.sum() / count;
+	}
+
+	public double getSearchP50Millis() {
+		return searchTime.percentile(0.50) / 1000.0;
+	}
+
+	public double getSearchP99Millis() {
+		return searchTime.percentile(0.99) / 1000.0;
+	}
+
+	public double getBotMoveP50Millis() {
+		return botMoveTime.percentile(0.50) / 1000.0;
+	}
+
+	public double getBotMoveP99Millis() {
+		return botMoveTime.percentile(0.99) / 1000.0;
+	}
+
+	public int getSearchQueueDepth() {
+		return SearchExecutor.queueDepth();
+	}
+
+	public int getActiveSearches() {
+		return SearchExecutor.activeSearches();
+	}
+
+	public long getActiveConnections() {
+		return connectionsOpened.sum() - connectionsClosed.sum();
+	}
+
+	public int getWaitingPlayers() {
+		return Matchmaker.waitingPlayers();
+	}
+
+	public int getActiveHumanGames() {
+		return activeGames.get(0);
+	}
+
+	public int getActiveBotGames() {
+		int total = 0;
+		for (int level = 1; level <= MAX_LEVEL; level++)
+			total += activeGames.get(level);
+		return total;
+	}
+
+	public int getSpectators() {
+		return Spectators.watching.get();
+	}
+
+	public long getSpectatorBoardsSkipped() {
+		return Spectators.skipped.sum();
+	}
+
+	public long getMoves() {
+		return moves.sum();
+	}
+
+	public double getMovesPerSecond() {
+		return moveRate.perSecond();
+	}
+
+	public double getPonderHitRate() {
+		long count = ponders.sum();
+		return count == 0 ? 0 : (double) ponderHits.sum() / count;
+	}
+
+	public double getSharedCacheHitRate() {
+		SharedCache shared = SharedCache.cache;
+		return shared == null ? 0 : shared.hitRate();
+	}
+
+	public long getSharedCacheEvictions() {
+		SharedCache shared = SharedCache.cache;
+		return shared == null ? 0 : shared.evictions.sum();
+	}
+
+	/**
+	 * A latency histogram with power-of-two buckets in microseconds. Recording adds
+	 * to striped counters, so threads recording at once do not contend.
+	 */
+	static class Histogram {
+		static final int BUCKETS = 32; // bucket i holds values below 2^i microseconds, the last one the rest
+
+		final LongAdder[] counts = new LongAdder[BUCKETS];
+		final LongAdder sum = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < BUCKETS; i++)
+				counts[i] = new LongAdder();
+		}
+
+		void record(long nanos) {
+			long micros = nanos / 1000;
+			counts[Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1)].increment();
+			sum.add(micros);
+		}
+
+		/**
+		 * Upper bound in microseconds of the bucket holding the given fraction of the values.
+		 */
+		long percentile(double p) {
+			long[] snapshot = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = counts[i].sum();
+				total += snapshot[i];
+			}
+			long rank = (long) Math.ceil(p * total);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += snapshot[i];
+				if (seen >= rank && seen > 0)
+					return 1L << i;
+			}
+			return 0;
+		}
+
+		void render(StringBuilder out, String name) {
+			long seen = 0;
+			for (int i = 0; i < BUCKETS - 1; i++) {
+				seen += counts[i].sum();
+				line(out, name + "_bucket{le=\"" + (1L << i) + "\"}", seen);
+			}
+			seen += counts[BUCKETS - 1].sum();
+			line(out, name + "_bucket{le=\"+Inf\"}", seen);
+			line(out, name + "_count", seen);
+			line(out, name + "_sum", sum.sum());
+		}
+	}
+
+	/**
+	 * Events per second over the last ten whole seconds, counted in a ring of one-second slots.
+	 */
+	static class Rate {
+		static final int SLOTS = 16;
+		static final int WINDOW = 10;
+
+		final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+		final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+
+		void mark() {
+			long second = System.nanoTime() / 1000000000L;
+			int slot = (int) Math.floorMod(second, (long) SLOTS);
+			long old = seconds.get(slot);
+			if (old != second && seconds.compareAndSet(slot, old, second))
+				counts.set(slot, 0);
+			counts.incrementAndGet(slot);
+		}
+
+		double perSecond() {
+			long now = System.nanoTime() / 1000000000L;
+			long total = 0;
+			for (long second = now - WINDOW; second < now; second++) {
+				int slot = (int) Math.floorMod(second, (long) SLOTS);
+				if (seconds.get(slot) == second)
+					total += counts.get(slot);
+			}
+			return (double) total / WINDOW;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+/**
+* The MetricsMBean interface lists what Metrics shows through JMX, under the name
+* Connect4:type=Metrics. Times are in milliseconds.
+*/
+
+public interface MetricsMBean {
+	long getSearches();
+
+	long getSearchNodes();
+
+	long getSearchCutoffs();
+
+	double getTableHitRate();
+
+	double getAverageSearchDepth();
+
+	double getSearchP50Millis();
+
+	double getSearchP99Millis();
+
+	double getBotMoveP50Millis();
+
+	double getBotMoveP99Millis();
+
+	int getSearchQueueDepth();
+
+	int getActiveSearches();
+
+	long getActiveConnections();
+
+	int getWaitingPlayers();
+
+	int getActiveHumanGames();
+
+	int getActiveBotGames();
+
+	int getSpectators();
+
+	long getSpectatorBoardsSkipped();
+
+	long getMoves();
+
+	double getMovesPerSecond();
+
+	double getPonderHitRate();
+
+	double getSharedCacheHitRate();
+
+	long getSharedCacheEvictions();
+}
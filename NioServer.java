@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+* The NioServer class serves clients with a few event-loop threads instead of one
+* thread per client. The main thread accepts connections and hands them to the
+* loops in turn; each loop reads, frames and writes the sockets it owns with a
+* Selector, and runs the NioSession of each of its connections.
+*/
+
+public class NioServer {
+
+	EventLoop[] loops;
+
+	NioServer(int loopCount) throws IOException {
+		loops = new EventLoop[loopCount];
+		for (int i = 0; i < loopCount; i++) {
+			loops[i] = new EventLoop(i);
+			loops[i].start();
+		}
+	}
+
+	/**
+	 * Accept connections forever.
+	 */
+	void serve(int port) throws IOException {
+		ServerSocketChannel welcomeChannel = ServerSocketChannel.open();
+		welcomeChannel.bind(new InetSocketAddress(port), Connect4Server.BACKLOG);
+
+		System.out.println("Waiting for incoming connection Request...");
+
+		int clientsConnected = 0;
+
+		while (true) {
+			SocketChannel channel = welcomeChannel.accept();
+			clientsConnected++;
+			System.out.println("New client connected with IP: " + channel.socket().getInetAddress());
+			System.out.println("Total number of clients connected: " + clientsConnected);
+
+			loops[clientsConnected % loops.length].register(channel);
+		}
+	}
+
+	/**
+	 * One event-loop thread and the connections it owns.
+	 */
+	static class EventLoop extends Thread {
+		Selector selector;
+		ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+		ConcurrentLinkedQueue<Connection> flushes = new ConcurrentLinkedQueue<Connection>();
+		ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		EventLoop(int index) throws IOException {
+			super("event-loop-" + index);
+			selector = Selector.open();
+		}
+
+		void register(SocketChannel channel) {
+			newChannels.add(channel);
+			selector.wakeup();
+		}
+
+		void scheduleFlush(Connection connection) {
+			flushes.add(connection);
+			selector.wakeup();
+		}
+
+		/**
+		 * Run a task on this loop, e.g. to change the state of one of its sessions.
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					System.out.println(e);
+					continue;
+				}
+
+				SocketChannel channel;
+				while ((channel = newChannels.poll()) != null) {
+					try {
+						channel.configureBlocking(false);
+						channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+						Connection connection = new Connection(channel, this);
+						connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+						Metrics.connectionOpened();
+						connection.session = new NioSession(new Player(connection));
+						connection.session.start();
+					} catch (IOException e) {
+						System.out.println(e);
+					}
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+
+				Connection connection;
+				while ((connection = flushes.poll()) != null) {
+					flush(connection);
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					connection = (Connection) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable())
+							connection.read();
+						if (key.isValid() && key.isWritable())
+							connection.flush();
+					} catch (IOException e) {
+						System.out.println(e);
+						connection.closeNow();
+					}
+				}
+			}
+		}
+
+		private void flush(Connection connection) {
+			if (connection.closed)
+				return;
+			try {
+				connection.flush();
+			} catch (IOException e) {
+				System.out.println(e);
+				connection.closeNow();
+			}
+		}
+	}
+}
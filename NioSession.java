@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+* The NioSession class runs the protocol of one client of the NIO server. It does
+* what Player.run does, but as a state machine fed with the lines the client sends,
+* so that no thread waits for the client. A session only runs on the event loop of
+* its connection; other sessions reach it through EventLoop.execute.
+*/
+
+public class NioSession {
+	static final int MODE = 0;
+	static final int LEVEL = 1;
+	static final int WAIT_FOR_OPPONENT = 2;
+	static final int NAME = 3;
+	static final int WAIT_FOR_READY = 4;
+	static final int PLAYING = 5;
+	static final int DONE = 6;
+	static final int PICK_GAME = 7;
+	static final int WATCHING = 8;
+
+	Player player;
+	int state;
+	// lines sent while waiting for the opponent, kept for when they are expected, like a socket would
+	ArrayDeque<String> pendingLines = new ArrayDeque<String>();
+
+	NioSession(Player initPlayer) {
+		player = initPlayer;
+	}
+
+	/**
+	 * Ask the client the game mode they want to play.
+	 */
+	void start() throws IOException {
+		state = MODE;
+		player.send(Player.HUMAN_COMP);
+		player.flush();
+	}
+
+	/**
+	 * Handle a line sent by the client.
+	 */
+	void onLine(String line) {
+		if (state == WATCHING)
+			return; // spectators have nothing to say
+		pendingLines.add(line);
+		processLines();
+	}
+
+	private void processLines() {
+		try {
+			while (!pendingLines.isEmpty() && state != WAIT_FOR_OPPONENT && state != WAIT_FOR_READY && state != DONE) {
+				handle(pendingLines.poll());
+			}
+			// send the replies to all the lines handled at once
+			player.flush();
+		} catch (Exception e) {
+			// like an uncaught error in Player.run: disconnect the opponent and drop the client
+			System.out.println(e);
+			state = DONE;
+			Journal.ended(player.game);
+			player.disconnectOpponent();
+			try {
+				player.closeConnection();
+			} catch (IOException e2) {
+				System.out.println(e2);
+			}
+		}
+	}
+
+	private void handle(String line) throws IOException {
+		if (state == MODE && line.equals(BinaryProtocol.REQUEST)) {
+			// The client picked the binary protocol; greet it again in a frame
+			player.binary = true;
+			player.send(Player.HUMAN_COMP);
+		} else if (state == MODE && Player.modeOf(line) == Player.WATCH) {
+			// List the games to watch, or ask for the mode again if there is none
+			if (Spectators.sendList(player)) {
+				state = PICK_GAME;
+			} else {
+				player.send(Player.HUMAN_COMP);
+			}
+		} else if (state == MODE) {
+			Variant variant;
+			try {
+				variant = Player.boardOf(line);
+			} catch (IllegalArgumentException e) {
+				// Tell the client why the server cannot play on its board, and ask for the mode again
+				player.send(e.getMessage() + "\n");
+				player.send(Player.HUMAN_COMP);
+				return;
+			}
+			requestGameMode(Player.modeOf(line), variant);
+		} else if (state == PICK_GAME) {
+			player.watcher = Spectators.watch(player, line);
+			if (player.watcher != null) {
+				state = WATCHING;
+			} else {
+				state = MODE;
+				player.send(Player.HUMAN_COMP);
+			}
+		} else if (state == LEVEL) {
+			int level = Integer.parseInt(line);
+			player.game.botLevel = Math.max(1, Math.min(level, Game.MAX_BOT_LEVEL));
+			player.game.start(true);
+			Metrics.gameStarted(player.game);
+			askName();
+		} else if (state == NAME) {
+			setName(line);
+		} else if (state == PLAYING) {
+			if (player.handleMove(line))
+				state = DONE;
+		}
+	}
+
+	/**
+	 * Pair the player with the waiting player or wait for the next one, or start a bot game.
+	 * Does what Player.requestGameMode does.
+	 */
+	private void requestGameMode(int choice, Variant variant) throws IOException {
+		if (choice == Player.HUMAN) {
+			// Pair with the waiting player, or wait until another player joins
+			if (Matchmaker.join(player, variant) != null) {
+				askName();
+			} else {
+				state = WAIT_FOR_OPPONENT;
+				player.send("Waiting for another player to connect...\n");
+				player.paired.thenRun(() -> player.connection.loop.execute(this::onPaired));
+			}
+		} else {
+			// Start the game with the AI Connecto-bot
+			player.game = new Game(variant);
+			player.firstPlayer = true;
+			player.game.player1 = player;
+			state = LEVEL;
+			player.send(Player.BOT_LEVEL);
+		}
+	}
+
+	private void askName() throws IOException {
+		state = NAME;
+		player.send(Player.YOUR_NAME);
+	}
+
+	/**
+	 * Set the player's name, unless the opponent already uses it. Does what
+	 * Player.requestPlayerName does; the game starts once both players are ready.
+	 */
+	private void setName(String inputName) throws IOException {
+		if (player.game.botEnabled) {
+			player.name = inputName;
+			Journal.gameReady(player.game);
+			Spectators.list(player.game);
+			beginGame();
+			return;
+		}
+		Player opponent = player.opponent;
+		player.game.lock.lock();
+		try {
+			if (inputName.length() > 0 && inputName.equals(opponent.name)) {
+				// Request for another name if the name has been used by another player
+				player.send(Player.DUPLICATE_NAME);
+				player.send(Player.YOUR_NAME);
+				return;
+			}
+			player.name = inputName.length() > 0 ? inputName : player.firstPlayer ? "Player 1" : "Player 2";
+		} finally {
+			player.game.lock.unlock();
+		}
+		player.send("Waiting for opponent to get ready...\n");
+		state = WAIT_FOR_READY;
+		player.game.nameReady();
+		player.game.namesReady.thenRun(() -> player.connection.loop.execute(this::onNamesReady));
+	}
+
+	private void beginGame() throws IOException {
+		if (!player.game.botEnabled)
+			player.send("Your opponent is " + player.opponent.name + "\n");
+		player.startPlaying();
+		state = PLAYING;
+	}
+
+	/**
+	 * Another player joined the game this player was waiting with.
+	 */
+	void onPaired() {
+		if (state != WAIT_FOR_OPPONENT)
+			return;
+		try {
+			askName();
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+		processLines();
+	}
+
+	/**
+	 * Both players entered their names.
+	 */
+	void onNamesReady() {
+		if (state != WAIT_FOR_READY)
+			return;
+		try {
+			beginGame();
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+		processLines();
+	}
+
+	/**
+	 * Everything queued on the connection has been sent: a spectator may send the
+	 * board it kept meanwhile.
+	 */
+	void onDrained() {
+		if (player.watcher != null)
+			player.watcher.sendNext();
+	}
+
+	/**
+	 * The connection closed: stop waiting or watching, and tell the opponent if the game was still on.
+	 */
+	void onClose() {
+		state = DONE;
+		Matchmaker.leave(player);
+		if (player.watcher != null)
+			player.watcher.leave();
+		if (player.game != null && player.game.botEnabled)
+			player.cancelPonder();
+		Metrics.connectionClosed();
+		if (player.game != null && player.game.player1 == player) {
+			Metrics.gameEnded(player.game);
+			Spectators.gameEnded(player.game);
+		}
+		if (player.game != null && !player.game.endGame) {
+			Journal.ended(player.game);
+			player.disconnectOpponent();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+* The OpeningBook class looks up the bot's move for early positions in a book file
+* built by OpeningBookGenerator. The file is memory-mapped once, so every game
+* shares the same pages and the book takes no heap.
+*
+* The file starts with a header of six ints (magic, version, plies, level, entry
+* count, unused), followed by the entries as longs sorted in increasing order.
+* Each entry holds a position key shifted left by 3 bits and the column to play
+* in the low 3 bits.
+*/
+
+public class OpeningBook {
+	static final int MAGIC = 0x43344263; // "C4Bc"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 6 * 4;
+
+	MappedByteBuffer buffer;
+	int plies; // the book covers positions with up to this many tokens
+	int level; // bot level the moves were searched at
+	int count;
+
+	private OpeningBook(MappedByteBuffer initBuffer) throws IOException {
+		buffer = initBuffer;
+		if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException("Not an opening book file");
+		plies = buffer.getInt(8);
+		level = buffer.getInt(12);
+		count = buffer.getInt(16);
+		if (buffer.capacity() < HEADER_BYTES + 8L * count)
+			throw new IOException("Opening book file is truncated");
+	}
+
+	/**
+	 * Memory-map a book file.
+	 * @param fileName path of the book
+	 */
+	static OpeningBook load(String fileName) throws IOException {
+		Path path = Paths.get(fileName);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return new OpeningBook(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Find the book move of a position.
+	 * @param key position key, see Game.key()
+	 * @return the column to play, or -1 if the position is not in the book
+	 */
+	int lookup(long key) {
+		// absolute reads only, so any number of games can search at once
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long entryKey = buffer.getLong(HEADER_BYTES + 8 * mid) >>> 3;
+			if (entryKey < key)
+				low = mid + 1;
+			else if (entryKey > key)
+				high = mid - 1;
+			else
+				return (int) (buffer.getLong(HEADER_BYTES + 8 * mid) & 7);
+		}
+		return -1;
+	}
+
+	/**
+	 * Encode a book in the file format.
+	 * @param entries sorted entries, key shifted left by 3 bits plus the column
+	 */
+	static ByteBuffer encode(long[] entries, int plies, int level) {
+		ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + 8 * entries.length);
+		out.putInt(MAGIC).putInt(VERSION).putInt(plies).putInt(level).putInt(entries.length).putInt(0);
+		for (long entry : entries)
+			out.putLong(entry);
+		out.flip();
+		return out;
+	}
+}
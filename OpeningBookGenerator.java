@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+* The OpeningBookGenerator class builds an opening book offline. Starting from the
+* empty board, it tries every human move, searches the bot's reply with the engine
+* and follows that reply, until the given number of tokens is on the board.
+*
+* Usage: java OpeningBookGenerator <book file> [plies] [level] [search threads]
+*/
+
+public class OpeningBookGenerator {
+
+	HashMap<Long, Integer> moves = new HashMap<Long, Integer>();
+	Game game = new Game();
+	int plies;
+	int level;
+
+	OpeningBookGenerator(int initPlies, int initLevel) {
+		plies = initPlies;
+		level = initLevel;
+		game.start(true);
+	}
+
+	/**
+	 * Add the bot's reply to every human move from the current position.
+	 * The human always moves first, so the bot moves on odd plies.
+	 */
+	void expand() {
+		if (game.moves >= plies)
+			return;
+		for (int col = 0; col < Game.COLS; col++) {
+			if (!game.canPlay(col))
+				continue;
+			game.placeToken(col);
+			if (!game.isWin(col) && !game.isTie()) {
+				long key = game.key();
+				Integer reply = moves.get(key);
+				if (reply == null) {
+					// no time limit, the book is built offline
+					game.iterativeSearch(level, Long.MAX_VALUE / 2, Long.MAX_VALUE);
+					reply = game.bestMove;
+					moves.put(key, reply);
+					if (moves.size() % 100 == 0)
+						System.out.println(moves.size() + " positions searched");
+				}
+				game.placeToken(reply);
+				if (!game.isWin(reply))
+					expand();
+				game.removeToken(reply);
+			}
+			game.removeToken(col);
+		}
+	}
+
+	/**
+	 * Write the book, sorted by position key.
+	 */
+	void write(String fileName) throws IOException {
+		long[] entries = new long[moves.size()];
+		int i = 0;
+		for (Long key : moves.keySet())
+			entries[i++] = key << 3 | moves.get(key);
+		Arrays.sort(entries);
+		ByteBuffer out = OpeningBook.encode(entries, plies, level);
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (out.hasRemaining())
+				channel.write(out);
+		}
+	}
+
+	public static void main(String argv[]) throws Exception {
+		if (argv.length < 1) {
+			System.out.println("Usage: java OpeningBookGenerator <book file> [plies] [level] [search threads]");
+			return;
+		}
+		int plies = argv.length > 1 ? Integer.parseInt(argv[1]) : 7;
+		int level = argv.length > 2 ? Integer.parseInt(argv[2]) : Game.MAX_BOT_LEVEL;
+		if (argv.length > 3)
+			Game.configureSearchThreads(Integer.parseInt(argv[3]));
+
+		OpeningBookGenerator generator = new OpeningBookGenerator(plies, level);
+		generator.expand();
+		generator.write(argv[0]);
+		System.out.println("Wrote " + generator.moves.size() + " positions to " + argv[0]);
+		if (Game.searchPool != null)
+			Game.searchPool.shutdown();
+	}
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+* The Outbox class collects the messages one game event produces for a client, and
+* sends them together when the event is done: in one write to the socket, or in one
+* gathering write on the client's NIO connection. Messages are added while the game
+* is locked, which only copies references; the flush happens after the lock is
+* released, so a slow client never holds up the game.
+*
+* Buffers added to an outbox must not change afterwards, so that a board encoded
+* once can be shared by both players.
+*/
+
+public class Outbox {
+	private OutputStream stream; // socket of a thread-mode player
+	private Connection connection; // or connection of an NIO player
+	// keeps flushes in order; a lock rather than synchronized, since it is held while
+	// writing to the socket and a virtual thread must not pin its carrier meanwhile
+	private final ReentrantLock flushLock = new ReentrantLock();
+
+	// guarded by this: the messages added since the last flush
+	private ByteBuffer[] parts = new ByteBuffer[8];
+	private int count;
+	private int bytes;
+
+	// guarded by flushLock: the batch copied into one array for a stream write
+	private byte[] batch = new byte[1024];
+
+	Outbox(OutputStream initStream) {
+		stream = initStream;
+	}
+
+	Outbox(Connection initConnection) {
+		connection = initConnection;
+	}
+
+	synchronized void add(byte[] message) {
+		add(ByteBuffer.wrap(message));
+	}
+
+	synchronized void add(ByteBuffer message) {
+		if (count == parts.length) {
+			ByteBuffer[] bigger = new ByteBuffer[count * 2];
+			System.arraycopy(parts, 0, bigger, 0, count);
+			parts = bigger;
+		}
+		parts[count++] = message;
+		bytes += message.remaining();
+	}
+
+	/**
+	 * Send every message added so far.
+	 */
+	void flush() throws IOException {
+		if (connection != null) {
+			synchronized (this) {
+				if (count > 0)
+					connection.write(parts, count);
+				clear();
+			}
+			return;
+		}
+		flushLock.lock();
+		try {
+			int length;
+			synchronized (this) {
+				if (count == 0)
+					return;
+				length = bytes;
+				if (batch.length < length)
+					batch = new byte[Math.max(batch.length * 2, length)];
+				int offset = 0;
+				for (int i = 0; i < count; i++) {
+					ByteBuffer part = parts[i];
+					int size = part.remaining();
+					part.duplicate().get(batch, offset, size);
+					offset += size;
+				}
+				clear();
+			}
+			// write outside the outbox's monitor, so that adding messages never waits for the socket
+			stream.write(batch, 0, length);
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	private void clear() {
+		for (int i = 0; i < count; i++)
+			parts[i] = null;
+		count = 0;
+		bytes = 0;
+	}
+}
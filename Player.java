@@ -1,235 +1,418 @@
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
 
 /**
-* The Player class represents a connection between a server and a client. Each creation
-* of this class creates a new Thread, which handles message exchange between server and client.
+* The Player class represents a connection between a server and a client. Each player
+* runs on its own thread (a virtual thread in virtual mode), which handles message
+* exchange between server and client.
 * 
 * @author Quan Chau, Noah Hunt-Isaak
 * @version 4/28/19
 */
 
-public class Player extends Thread {
+public class Player implements Runnable {
 	static final String HUMAN_COMP = "HUMAN_COMP\n";
 	static final String BOT_LEVEL = "BOT_LEVEL\n";
 	static final int HUMAN = 1;
 	static final int COMP = 2;
+	static final int WATCH = 3;
 	static final String WAIT_FOR_OPPONENT = "WAIT_FOR_OPPONENT\n";
 	static final String YOUR_NAME = "YOUR_NAME\n";
 	static final String DUPLICATE_NAME = "DUPLICATE_NAME\n";
 	static final String YOUR_MOVE = "YOUR_MOVE\n";
 	static final String INVALID_MOVE = "INVALID_MOVE\n";
 	static final String END_GAME = "END_GAME\n";
-	static final String DUMMY_NAME = "1309ureh32id09iwd#&41";
 	static final String DISCONNECT = "DISCONNECT\n";
+	static final String PICK_GAME = "PICK_GAME\n";
 
 	Socket socket; 
+	Connection connection; // set instead of socket when the server runs on NIO event loops
 	BufferedReader inFromClient;
-	DataOutputStream outToClient;
+	Outbox outToClient; // messages of the current game event, sent together by flush
 	Player opponent;
 	String name;
 	boolean firstPlayer;
 	Game game;
+	boolean binary; // the client asked for BinaryProtocol frames
+	int movesSent; // moves of the game the client has seen, in binary mode
+	Spectators.Watcher watcher; // set when the client watches a game instead of playing
+	// completes when an opponent joins the game this player waits with
+	CompletableFuture<Game> paired = new CompletableFuture<Game>();
 
 	Player(Socket initSocket, boolean isFirstPlayer)
 			throws IOException {
 		socket = initSocket;
 		inFromClient = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-		outToClient = new DataOutputStream(socket.getOutputStream());
+		outToClient = new Outbox(socket.getOutputStream());
 		firstPlayer = isFirstPlayer;
 		name = "";
 	}
 	
-	Player(){
-		//dummy constructor
-		name = DUMMY_NAME;
+	Player(Connection initConnection) {
+		connection = initConnection;
+		outToClient = new Outbox(connection);
+		firstPlayer = false;
+		name = "";
 	}
 
 	/**
-	* When start() is called, the thread runs this method to activate the player
+	* When the player's thread starts, it runs this method to activate the player
 	* It will ask the client to choose the game mode, enter the name and start the game.
 	*/
 	@Override
 	public void run() {
 		try {
 			requestGameMode();
-			requestPlayerName();
-
-			// Send the initial boardstring to both players, and ask the first player to move
-			String boardString = game.boardToString();
-			outToClient.writeBytes(boardString);
-			if (firstPlayer) {
-				outToClient.writeBytes(YOUR_MOVE);
-			} else {
-				outToClient.writeBytes(WAIT_FOR_OPPONENT);
+			if (watcher != null) {
+				// spectators only receive the game's boards, sent from this thread
+				watcher.run();
+				return;
 			}
+			requestPlayerName();
+			startPlaying();
 
 			while (true) {
 				// Read the move entered my the player and make the move if it is their turn
-				String move = inFromClient.readLine();
-				synchronized (game) {
-					if (game.currentPlayer == this) {
-						move = move.trim();
-						try {
-							int moveCol = Integer.parseInt(move);
-							// Check if the entered column value is valid
-							if (moveCol < 1 || moveCol > 7)
-								throw new NumberFormatException();
-								int height = game.heights[moveCol - 1];
-								if (height < 6) {
-									game.placeToken(moveCol - 1);
-									boardString = game.boardToString();
-
-									if (game.isWin(moveCol - 1)) {
-										// check if this is the winning move of the current player
-										outToClient.writeBytes(boardString);
-
-										// send the winning message to both players and end the game
-										outToClient.writeBytes(name + " wins!\n");
-										outToClient.writeBytes(END_GAME);
-
-										if (!game.botEnabled) {
-											opponent.outToClient.writeBytes(boardString);
-											opponent.outToClient.writeBytes(name + " wins!\n");
-											opponent.outToClient.writeBytes(END_GAME);
-										}
-										game.endGame = true;
-										socket.close();
-										opponent.socket.close();
-										break;
-
-									} else if (game.isTie()) {
-										// Check if the game is tie after this move (all of the columns are full but no one wins)
-										outToClient.writeBytes(boardString);
-
-										// send the tie message to both players and end the game
-										outToClient.writeBytes("It's a tie!\n");
-										outToClient.writeBytes(END_GAME);
-
-										if (!game.botEnabled) {
-											opponent.outToClient.writeBytes(boardString);
-											opponent.outToClient.writeBytes("It's a tie!\n");
-											opponent.outToClient.writeBytes(END_GAME);
-										}
-
-										game.endGame = true;
-										socket.close();
-										opponent.socket.close();
-										break;
-									}
-
-								} else {
-									throw new ColumnFullException(moveCol);
+				String move = readLine();
+				if (handleMove(move))
+					break;
+			}
+		} catch (Exception e) {
+			System.out.println(e);
+			Matchmaker.leave(this);
+			Journal.ended(game);
+			disconnectOpponent();
+		} finally {
+			Metrics.connectionClosed();
+			if (game != null && game.botEnabled)
+				cancelPonder();
+			if (game != null && game.player1 == this) {
+				Metrics.gameEnded(game);
+				Spectators.gameEnded(game);
+			}
+		}
+	}
+
+	/**
+	* Send the initial boardstring to the player, and ask the player whose turn it is
+	* to move: the first player, unless the game was resumed from the Journal
+	*/
+	void startPlaying() throws IOException {
+		if (game.resumedMoves > 0) {
+			send("Resuming your unfinished game after " + game.resumedMoves + (game.resumedMoves == 1 ? " move" : " moves")
+					+ (game.botEnabled ? " (Connecto-bot level " + game.botLevel + ")" : "") + ".\n");
+		}
+		sendBoard(game.boardBytes());
+		if (firstPlayer == (game.resumedMoves % 2 == 0)) {
+			send(YOUR_MOVE);
+			if (game.botEnabled) {
+				// think about the player's first move while they do
+				game.lock.lock();
+				try {
+					Ponder.start(game);
+				} finally {
+					game.lock.unlock();
+				}
+			}
+		} else {
+			send(WAIT_FOR_OPPONENT);
+			if (game.botEnabled) {
+				// the game was resumed on the bot's turn
+				SearchExecutor.submit(game);
+			}
+		}
+	}
+
+	/**
+	* Make the move entered by the player if it is their turn, then let the opponent
+	* or the bot move next.
+	* @param move the line sent by the client
+	* @return true if the move ended the game
+	*/
+	boolean handleMove(String move) throws IOException {
+		long start = System.nanoTime();
+		byte[] board;
+		boolean moved = false;
+		boolean botTurn = false;
+		boolean over = false;
+		game.lock.lock();
+		try {
+			if (game.currentPlayer == this) {
+				move = move.trim();
+				try {
+					int moveCol = Integer.parseInt(move);
+					// Check if the entered column value is valid
+					if (moveCol < 1 || moveCol > game.variant.cols)
+						throw new NumberFormatException();
+						if (game.canPlay(moveCol - 1)) {
+							game.placeToken(moveCol - 1);
+							Journal.moved(game, moveCol - 1);
+							Ponder.stop(game);
+							moved = true;
+							board = game.boardBytes(); // encoded once for both players
+							Spectators.moved(game, board);
+
+							if (game.isWin(moveCol - 1)) {
+								// check if this is the winning move of the current player
+								sendBoard(board);
+
+								// send the winning message to both players and end the game
+								send(name + " wins!\n");
+								send(END_GAME);
+
+								if (!game.botEnabled) {
+									opponent.sendBoard(board);
+									opponent.send(name + " wins!\n");
+									opponent.send(END_GAME);
 								}
+								game.endGame = true;
+								Journal.ended(game);
+								over = true;
+
+							} else if (game.isTie()) {
+								// Check if the game is tie after this move (all of the columns are full but no one wins)
+								sendBoard(board);
 
-							// If the game has not ended, notify the opponent/the bot to move
-							if (!game.endGame) {
-								game.currentPlayer = opponent;
-								boardString = game.boardToString();
-								if (game.botEnabled) {
-									// Call the method in Game class to make the bot move
-									game.botMove();
-								} else {
-									outToClient.writeBytes(boardString);
-									outToClient.writeBytes(WAIT_FOR_OPPONENT);
-									opponent.outToClient.writeBytes(boardString);
-									opponent.outToClient.writeBytes(YOUR_MOVE);
+								// send the tie message to both players and end the game
+								send("It's a tie!\n");
+								send(END_GAME);
+
+								if (!game.botEnabled) {
+									opponent.sendBoard(board);
+									opponent.send("It's a tie!\n");
+									opponent.send(END_GAME);
 								}
+
+								game.endGame = true;
+								Journal.ended(game);
+								over = true;
 							}
-						} catch (NumberFormatException nfe) {
-							// This error indicates the entered move is not a number 1 - 7
-							outToClient.writeBytes(INVALID_MOVE);
-
-						} catch (ColumnFullException e) {
-							// This error indicates the entered column is already full,
-							// asking the player to enter another move
-							System.out.println(e);
-							outToClient.writeBytes(e.toString());
-							outToClient.writeBytes(YOUR_MOVE);
+
+						} else {
+							throw new ColumnFullException(moveCol);
+						}
+
+					// If the game has not ended, notify the opponent/the bot to move
+					if (!game.endGame) {
+						game.currentPlayer = opponent;
+						if (game.botEnabled) {
+							// The bot moves once the game's lock is released
+							botTurn = true;
+						} else {
+							sendBoard(board);
+							send(WAIT_FOR_OPPONENT);
+							opponent.sendBoard(board);
+							opponent.send(YOUR_MOVE);
 						}
-					} else {
-						outToClient.writeBytes(WAIT_FOR_OPPONENT);
 					}
+				} catch (NumberFormatException nfe) {
+					// This error indicates the entered move is not a column of the board
+					send(INVALID_MOVE);
+
+				} catch (ColumnFullException e) {
+					// This error indicates the entered column is already full,
+					// asking the player to enter another move
+					System.out.println(e);
+					send(e.toString());
+					send(YOUR_MOVE);
 				}
+			} else {
+				send(WAIT_FOR_OPPONENT);
 			}
-		} catch (Exception e) {
-			System.out.println(e);
-			if (opponent != null) {
-				// Disconnect another player if the current player disconnects/raises an uncaught error
-				try {
-					opponent.outToClient.writeBytes(DISCONNECT);
-				} catch (IOException e2) {
-					System.out.println(e2);
-				}
+			if (over)
+				Ponder.cancel(game);
+		} finally {
+			game.lock.unlock();
+		}
+		// Send what the move produced to both players and the spectators, outside the game's lock
+		flush();
+		if (opponent != null)
+			opponent.flush();
+		if (moved)
+			Spectators.fanOut(game);
+		if (moved)
+			Metrics.recordHumanMove(System.nanoTime() - start);
+		if (over) {
+			closeConnection();
+			if (opponent != null)
+				opponent.closeConnection();
+			return true;
+		}
+		if (botTurn) {
+			// Search the bot's move on the search threads, outside the game's lock
+			SearchExecutor.submit(game);
+		}
+		return false;
+	}
+
+	/**
+	* Add a protocol keyword or a message line to what is sent to the client by the next flush.
+	*/
+	void send(String message) {
+		outToClient.add(binary ? BinaryProtocol.encodeMessage(message) : message.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	* Add the board to what is sent to the client by the next flush: the board encoded
+	* by Game.boardBytes in text mode, or the moves played since the last board and the
+	* state of the game in binary mode.
+	*/
+	void sendBoard(byte[] board) {
+		if (!binary) {
+			outToClient.add(board);
+			return;
+		}
+		outToClient.add(BinaryProtocol.encodeMoves(game.history, movesSent, game.moves, BinaryProtocol.stateOf(game)));
+		movesSent = game.moves;
+	}
+
+	/**
+	* Send everything added since the last flush to the client.
+	*/
+	void flush() throws IOException {
+		outToClient.flush();
+	}
+
+	/**
+	* Read a line from the client, once everything it is waiting for has been sent.
+	*/
+	String readLine() throws IOException {
+		flush();
+		return inFromClient.readLine();
+	}
+
+	/**
+	* Stop the bot of this player's game from pondering, once the game is over or the player left
+	*/
+	void cancelPonder() {
+		game.lock.lock();
+		try {
+			Ponder.cancel(game);
+		} finally {
+			game.lock.unlock();
+		}
+	}
+
+	/**
+	* Tell the opponent that this player disconnected or raised an uncaught error
+	*/
+	void disconnectOpponent() {
+		if (opponent != null) {
+			try {
+				opponent.send(DISCONNECT);
+				opponent.flush();
+			} catch (IOException e2) {
+				System.out.println(e2);
 			}
-		} 
+		}
 	}
 
 	/**
-	* Request the client the game mode they want to client (with another player
-	* or with the AI Connecto-bot)
+	* Close the connection to the client, once what was sent to it is written
 	*/
-	public void requestGameMode() throws IOException, InterruptedException {
-		outToClient.writeBytes(HUMAN_COMP);
-		int choice = Integer.parseInt(inFromClient.readLine());
-		if (choice == HUMAN) {
-			synchronized(Game.waitingPlayer) {
-				if (!Game.waitingPlayer.name.equals(DUMMY_NAME)) {
-					// If there is another player waiting, pair them together and start the game
-					game = Game.waitingPlayer.game;
-					synchronized(game) {
-						game.player2 = this;
-						Game.waitingPlayer.opponent = this;
-						opponent = Game.waitingPlayer;
-						game.start(false);
-						Game.waitingPlayer = Game.dummy;
-					}
-				} else {
-					// If waitingPlayer is the dummy player, replace the waiting player and wait
-					// for another player to connect
-					game = new Game();
-					game.player1 = this;
-					Game.waitingPlayer = this;
-					firstPlayer = true;
-					outToClient.writeBytes("Waiting for another player to connect...\n");
-					while (game.player2 == null) {
-						sleep(1000);
-					}
+	void closeConnection() throws IOException {
+		flush();
+		if (connection != null) {
+			connection.close();
+		} else {
+			socket.close();
+		}
+	}
+
+	/**
+	* Request the client the game mode they want to client (with another player,
+	* with the AI Connecto-bot, or watching a game), and the board they want to play on
+	*/
+	public void requestGameMode() throws IOException {
+		send(HUMAN_COMP);
+		String line = readLine();
+		if (line.equals(BinaryProtocol.REQUEST)) {
+			// The client picked the binary protocol; greet it again in a frame
+			binary = true;
+			send(HUMAN_COMP);
+			line = readLine();
+		}
+		Variant variant;
+		while (true) {
+			if (modeOf(line) == WATCH) {
+				// Watch the game picked from the list, or ask for the mode again if there is none
+				if (Spectators.sendList(this)) {
+					watcher = Spectators.watch(this, readLine());
+					if (watcher != null)
+						return;
+				}
+			} else {
+				// Tell the client why the server cannot play on its board, and ask for the mode again
+				try {
+					variant = boardOf(line);
+					break;
+				} catch (IllegalArgumentException e) {
+					send(e.getMessage() + "\n");
 				}
 			}
+			send(HUMAN_COMP);
+			line = readLine();
+		}
+		int choice = modeOf(line);
+		if (choice == HUMAN) {
+			// Pair with the waiting player, or wait until another player joins
+			if (Matchmaker.join(this, variant) == null) {
+				send("Waiting for another player to connect...\n");
+				flush();
+				paired.join();
+			}
 		} else {
 			// Start the game with the AI Connecto-bot
-			game = new Game();
+			game = new Game(variant);
 			firstPlayer = true;
 			game.player1 = this;
-			outToClient.writeBytes(BOT_LEVEL);
-			int level = Integer.parseInt(inFromClient.readLine());
-			game.botLevel = level;
+			send(BOT_LEVEL);
+			int level = Integer.parseInt(readLine());
+			game.botLevel = Math.max(1, Math.min(level, Game.MAX_BOT_LEVEL));
 			game.start(true);
+			Metrics.gameStarted(game);
 		}	
 	}
 
+	/**
+	* Read the game mode of the client's answer to HUMAN_COMP, e.g. 2 in "2 7x8x4".
+	*/
+	static int modeOf(String line) {
+		return Integer.parseInt(line.trim().split("\\s+")[0]);
+	}
+
+	/**
+	* Read the board of the client's answer to HUMAN_COMP, e.g. 7x8x4 in "2 7x8x4":
+	* rows, columns and tokens in a row to win. The standard board if it names none.
+	*/
+	static Variant boardOf(String line) {
+		String[] parts = line.trim().split("\\s+");
+		return parts.length > 1 ? Variant.parse(parts[1]) : Variant.STANDARD;
+	}
+
 	/**
 	* Ask the player to enter their name. If the entered name is an empty string,
 	* set the default name (Player 1 or Player 2)
 	*/
-	public void requestPlayerName() throws IOException, InterruptedException  {
+	public void requestPlayerName() throws IOException {
 		// Requesting the player's name
 		while (true) {
-			outToClient.writeBytes(YOUR_NAME);
-			String inputName = inFromClient.readLine();
+			send(YOUR_NAME);
+			String inputName = readLine();
 			if (game.botEnabled) {
 				name = inputName;
 				break;
 			}
 			// Request for another name if the name has been used by another player
-			synchronized (opponent.name) {
+			game.lock.lock();
+			try {
 				if (inputName.length() > 0 && inputName.equals(opponent.name)) {
-					outToClient.writeBytes(DUPLICATE_NAME);
+					send(DUPLICATE_NAME);
 				} else {
 					// Set default name
 					name = inputName;
@@ -238,15 +421,20 @@ public class Player extends Thread {
 					}
 					break;
 				}
+			} finally {
+				game.lock.unlock();
 			}
 		}
-		if (!game.botEnabled) {
+		if (game.botEnabled) {
+			Journal.gameReady(game);
+			Spectators.list(game);
+		} else {
 			// Wait for opponent to enter his/her name
-			outToClient.writeBytes("Waiting for opponent to get ready...\n");
-			while (opponent.name.equals("")) {
-				sleep(1000);
-			}
-			outToClient.writeBytes("Your opponent is " + opponent.name + "\n");
+			send("Waiting for opponent to get ready...\n");
+			flush();
+			game.nameReady();
+			game.namesReady.join();
+			send("Your opponent is " + opponent.name + "\n");
 		}
 	}
 	
@@ -0,0 +1,163 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+* The Ponder class lets the bot of a game think on the player's time. Once the bot
+* has moved, it searches its answer to each reply of the player on a copy of the
+* board, the reply the bot's own search expected first and then the others from the
+* center out, each with the time budget of its level. When the player plays one of
+* the searched replies, the bot plays the answer found for it at once. Otherwise
+* its search still finds the ponder's results in the pooled tables.
+*
+* The ponder takes over the table the bot's search leased and returns it to the
+* pool once it stops, so that a bot move waiting for a search thread holds no
+* table; the pool keeps the entries of tables leased again for the same board. The
+* player's move asks the ponder to stop, which it does within about a thousand
+* positions, and the bot's search waits for that. A server-wide limit on the number
+* of games pondering at once keeps pondering from taking the cores of real searches.
+*/
+
+public class Ponder {
+	// lower levels answer within a few milliseconds anyway
+	static final int MIN_LEVEL = 6;
+
+	// games that may ponder at once, none when 0
+	static Semaphore permits = new Semaphore(Runtime.getRuntime().availableProcessors());
+	static final ExecutorService threads = Executors.newCachedThreadPool(task -> {
+		Thread thread = new Thread(task, "ponder");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	Game game;
+	Game board; // copy of the game's board, with the game's table
+	int expected; // reply the bot's search expected, -1 if unknown
+	// answers found so far: position after a reply, and the bot's move there
+	long[] keys;
+	int[] answers;
+	int count;
+	final CountDownLatch done = new CountDownLatch(1);
+
+	/**
+	 * Set how many games may ponder at once. Call once at server start.
+	 */
+	static void configure(int games) {
+		permits = new Semaphore(games);
+	}
+
+	/**
+	 * Start pondering in a game the bot just moved in, unless the limit of pondering
+	 * games is reached. Call with the game's lock held, before the player can move.
+	 */
+	static void start(Game game) {
+		if (game.endGame || game.closed || game.botLevel < MIN_LEVEL || !permits.tryAcquire())
+			return;
+		Ponder ponder = new Ponder();
+		ponder.game = game;
+		ponder.board = new Game(game.variant);
+		ponder.board.copyPosition(game);
+		ponder.keys = new long[game.variant.cols];
+		ponder.answers = new int[game.variant.cols];
+		ponder.expected = -1;
+		if (game.table == null) {
+			ponder.board.table = TranspositionTable.lease(game);
+		} else {
+			int slot = game.table.probe(game.key());
+			ponder.expected = slot >= 0 ? game.table.move(slot) : -1;
+			ponder.board.table = game.table;
+			game.table = null;
+		}
+		ponder.board.botLevel = game.botLevel;
+		ponder.board.botNodes = game.botNodes;
+		ponder.board.pondering = true;
+		game.ponder = ponder;
+		threads.execute(ponder::run);
+	}
+
+	/**
+	 * Ask the ponder of a game to stop, e.g. because the player moved. Call with the game's lock held.
+	 */
+	static void stop(Game game) {
+		if (game.ponder != null)
+			game.ponder.board.stopRequested = true;
+	}
+
+	/**
+	 * Stop the ponder of a game for good, because the game is over or the player left,
+	 * so that a dead game does not hold a permit. The game never ponders again. Call
+	 * with the game's lock held.
+	 */
+	static void cancel(Game game) {
+		game.closed = true;
+		stop(game);
+		game.ponder = null;
+	}
+
+	/**
+	 * Wait for the ponder of a game to stop, and take the answer it found for the
+	 * current position.
+	 * @return the column to play, or -1 if the ponder found none
+	 */
+	static int finish(Game game) {
+		Ponder ponder = game.ponder;
+		if (ponder == null)
+			return -1;
+		game.ponder = null;
+		ponder.board.stopRequested = true;
+		try {
+			ponder.done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+		long key = game.key();
+		for (int i = 0; i < ponder.count; i++) {
+			if (ponder.keys[i] == key) {
+				Metrics.recordPonder(true);
+				return ponder.answers[i];
+			}
+		}
+		Metrics.recordPonder(false);
+		return -1;
+	}
+
+	private void run() {
+		try {
+			if (expected >= 0)
+				answer(expected);
+			for (int col : board.variant.centerFirst) {
+				if (col != expected)
+					answer(col);
+			}
+		} finally {
+			TranspositionTable.release(board.table);
+			board.table = null;
+			permits.release();
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Search the bot's answer to a reply of the player, as chooseBotMove would.
+	 */
+	private void answer(int reply) {
+		if (board.stopRequested || !board.canPlay(reply))
+			return;
+		board.placeToken(reply);
+		// the bot plays from the book or solves such positions without searching
+		boolean searched = !board.isWin(reply) && !board.isTie()
+				&& (!board.usesBook() || Game.book.lookup(board.key()) < 0)
+				&& (board.botLevel < Game.SOLVER_LEVEL || board.variant.cells - board.moves > EndgameSolver.emptyCells);
+		if (searched) {
+			board.iterativeSearch(board.botLevel, Game.LEVEL_BUDGET_MS[board.botLevel] * 1000000L, board.botNodes);
+			if (!board.stopRequested) {
+				keys[count] = board.key();
+				answers[count] = board.bestMove;
+				count++;
+			}
+		}
+		board.removeToken(reply);
+	}
+}
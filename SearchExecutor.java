@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+* The SearchExecutor class runs the bot's moves on a fixed number of threads, so
+* that bot searches neither block the connection threads nor use more cores than
+* allowed, however many bot games are running. Moves wait in a bounded queue. When
+* the queue is full, a move waits in an overflow list instead and its player is told
+* that the server is busy; every finished search moves waiting moves into the queue.
+* A search never runs on the thread that asked for it, which may be an event loop
+* serving many other clients. A game has at most one bot move waiting, so the
+* overflow holds at most one move per bot game.
+*/
+
+public class SearchExecutor {
+
+	// bot moves that found the queue full, oldest first
+	static final ConcurrentLinkedDeque<Runnable> overflow = new ConcurrentLinkedDeque<Runnable>();
+
+	static ThreadPoolExecutor executor = create(Runtime.getRuntime().availableProcessors(), 1024);
+
+	private static ThreadPoolExecutor create(int searches, int queueSize) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(searches, searches, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize)) {
+			@Override
+			protected void afterExecute(Runnable task, Throwable error) {
+				drainOverflow();
+			}
+		};
+		pool.setThreadFactory(task -> {
+			Thread thread = new Thread(task, "bot-search");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// the overflow is moved straight into the queue, so every thread has to be running
+		pool.prestartAllCoreThreads();
+		return pool;
+	}
+
+	/**
+	 * Set how many bot moves are searched at once and how many may wait.
+	 * Call once at server start, before any bot game.
+	 */
+	static void configure(int searches, int queueSize) {
+		executor.shutdown();
+		executor = create(searches, queueSize);
+	}
+
+	/**
+	 * Let the bot of a game move. The search runs on a copy of the board without
+	 * holding the game's lock, so spectators and the journal can read the board under
+	 * the lock meanwhile. The move is then played on the game while holding the lock,
+	 * and sent to the player and the spectators after.
+	 */
+	static void submit(Game game) {
+		Runnable move = () -> {
+			try {
+				int col;
+				try {
+					col = game.chooseBotMove();
+				} catch (RuntimeException e) {
+					// a failed search must not leave the player waiting for the bot forever
+					System.out.println("Connecto-bot's search failed, playing a random move: " + e);
+					col = game.getRandomMove();
+				}
+				game.lock.lock();
+				try {
+					game.playBotMove(col);
+					// think on the player's time until they move, with the search's table
+					Ponder.start(game);
+				} catch (RuntimeException e) {
+					System.out.println("Connecto-bot could not play its move, ending the game: " + e);
+					game.endGame = true;
+					game.player1.send("Connecto-bot ran into an error. The game ends.\n");
+					game.player1.send(Player.END_GAME);
+					Journal.ended(game);
+				} finally {
+					game.releaseTable();
+					game.lock.unlock();
+				}
+				game.player1.flush();
+				Spectators.fanOut(game);
+			} catch (IOException e) {
+				System.out.println(e);
+			}
+		};
+		try {
+			executor.execute(move);
+		} catch (RejectedExecutionException e) {
+			overflow.add(move);
+			// the searches may all have finished since the queue was found full
+			drainOverflow();
+			try {
+				game.player1.send("The server is busy. Connecto-bot will move as soon as it can.\n");
+				game.player1.flush();
+			} catch (IOException e2) {
+				System.out.println(e2);
+			}
+		}
+	}
+
+	/**
+	 * Move the bot moves of the overflow into the queue while it has room.
+	 */
+	private static void drainOverflow() {
+		Runnable move;
+		while ((move = overflow.poll()) != null) {
+			if (!executor.getQueue().offer(move)) {
+				overflow.addFirst(move);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Number of bot moves waiting for a search thread.
+	 */
+	static int queueDepth() {
+		return executor.getQueue().size() + overflow.size();
+	}
+
+	/**
+	 * Number of bot moves being searched right now.
+	 */
+	static int activeSearches() {
+		return executor.getActiveCount();
+	}
+}
@@ -0,0 +1,301 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+* The SelfPlay class runs tournaments between bot settings, without a server or
+* sockets. An entrant is a bot level with a set of window weights, the scores of
+* one, two and three tokens of a side alone in a window (10/100/500 by default).
+* Every pair of entrants plays each of a set of random openings twice, once with
+* each entrant moving first, and the games run on all cores at once.
+*
+* For every pairing and every entrant it reports the score, with a win counting 1
+* and a draw 1/2, and its 95% Wilson interval. It also reports the time and the
+* positions each entrant spent per move, so that settings of the same cost can be
+* compared.
+*
+* java SelfPlay [--levels=2-5] [--weights=10/100/500,5/50/1000] [--openings=10] [--random-plies=4]
+*               [--threads=4] [--nodes=100000] [--seed=1]
+*
+* --levels takes a range or a list (2,4,6). The openings are --random-plies random
+* moves each. --nodes caps the positions a bot searches per move on top of the
+* time budget of its level, which makes results depend less on the machine.
+*/
+
+public class SelfPlay {
+	static final double Z = 1.96; // 95% confidence
+
+	/**
+	 * A bot setting taking part in the tournament, with its totals.
+	 */
+	static class Entrant {
+		String name;
+		int level;
+		int[][] segmentScores;
+		int games;
+		int points; // in half points: 2 for a win, 1 for a draw
+		long nanos;
+		long moves;
+		long nodes;
+	}
+
+	/**
+	 * Outcome of one game, from the first entrant's point of view.
+	 */
+	static class Result {
+		int first;
+		int second;
+		int points; // half points of the first entrant
+		long[] nanos = new long[2];
+		long[] moves = new long[2];
+		long[] nodes = new long[2];
+	}
+
+	public static void main(String[] argv) throws Exception {
+		ArrayList<Integer> levels = new ArrayList<Integer>();
+		ArrayList<String> weights = new ArrayList<String>();
+		int openingCount = 10;
+		int randomPlies = 4;
+		int threads = Runtime.getRuntime().availableProcessors();
+		long nodes = Long.MAX_VALUE;
+		long seed = 1;
+		for (String arg : argv) {
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("--levels=")) {
+				for (String part : value.split(",")) {
+					int dash = part.indexOf('-');
+					int low = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+					int high = dash < 0 ? low : Integer.parseInt(part.substring(dash + 1));
+					for (int level = low; level <= high; level++)
+						levels.add(Math.max(1, Math.min(level, Game.MAX_BOT_LEVEL)));
+				}
+			} else if (arg.startsWith("--weights=")) {
+				for (String set : value.split(","))
+					weights.add(set);
+			} else if (arg.startsWith("--openings=")) {
+				openingCount = Integer.parseInt(value);
+			} else if (arg.startsWith("--random-plies=")) {
+				randomPlies = Integer.parseInt(value);
+			} else if (arg.startsWith("--threads=")) {
+				threads = Math.max(1, Integer.parseInt(value));
+			} else if (arg.startsWith("--nodes=")) {
+				nodes = Long.parseLong(value);
+			} else if (arg.startsWith("--seed=")) {
+				seed = Long.parseLong(value);
+			} else {
+				System.out.println("Unknown option: " + arg);
+			}
+		}
+		if (levels.isEmpty()) {
+			for (int level = 2; level <= 5; level++)
+				levels.add(level);
+		}
+		if (weights.isEmpty())
+			weights.add("10/100/500");
+
+		ArrayList<Entrant> entrants = new ArrayList<Entrant>();
+		for (int level : levels) {
+			for (String set : weights) {
+				String[] parts = set.split("/");
+				int[] values = new int[3];
+				for (int i = 0; i < 3; i++)
+					values[i] = Integer.parseInt(parts[i]);
+				Entrant entrant = new Entrant();
+				entrant.level = level;
+				entrant.segmentScores = buildScores(values);
+				entrant.name = "L" + level + (weights.size() > 1 ? " " + set : "");
+				entrants.add(entrant);
+			}
+		}
+		if (entrants.size() < 2) {
+			System.out.println("Give at least two levels or two weight sets");
+			return;
+		}
+		int[][] openings = openings(openingCount, randomPlies, seed);
+
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<Result>> games = new ArrayList<Future<Result>>();
+		long botNodes = nodes;
+		int index = 0;
+		for (int a = 0; a < entrants.size(); a++) {
+			for (int b = a + 1; b < entrants.size(); b++) {
+				for (int[] opening : openings) {
+					// every opening once with each entrant moving first
+					for (int swap = 0; swap < 2; swap++) {
+						int first = swap == 0 ? a : b;
+						int second = swap == 0 ? b : a;
+						long gameSeed = seed * 1000003 + index++;
+						games.add(pool.submit(() -> play(entrants, first, second, opening, botNodes, gameSeed)));
+					}
+				}
+			}
+		}
+		System.out.println("Playing " + games.size() + " games between " + entrants.size() + " entrants on "
+				+ threads + " threads");
+
+		int[][] pairPoints = new int[entrants.size()][entrants.size()];
+		int[][] pairWins = new int[entrants.size()][entrants.size()];
+		int[][] pairDraws = new int[entrants.size()][entrants.size()];
+		int played = 0;
+		for (Future<Result> future : games) {
+			Result result = future.get();
+			int[] sides = { result.first, result.second };
+			int[] points = { result.points, 2 - result.points };
+			for (int side = 0; side < 2; side++) {
+				Entrant entrant = entrants.get(sides[side]);
+				entrant.games++;
+				entrant.points += points[side];
+				entrant.nanos += result.nanos[side];
+				entrant.moves += result.moves[side];
+				entrant.nodes += result.nodes[side];
+				pairPoints[sides[side]][sides[1 - side]] += points[side];
+				if (points[side] == 2)
+					pairWins[sides[side]][sides[1 - side]]++;
+				else if (points[side] == 1)
+					pairDraws[sides[side]][sides[1 - side]]++;
+			}
+			played++;
+			if (played % 100 == 0)
+				System.out.println(played + " games played, " + rate(played, start) + " per second");
+		}
+		pool.shutdown();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		int width = 8;
+		for (Entrant entrant : entrants)
+			width = Math.max(width, entrant.name.length());
+		String pairFormat = "%-" + (2 * width + 4) + "s %6d %5d %5d %5d %7.1f%%  [%5.1f%%, %5.1f%%]";
+		System.out.println(String.format("%-" + (2 * width + 4) + "s %6s %5s %5s %5s %8s  %s", "Pairing", "games", "W", "D",
+				"L", "score", "95% interval"));
+		for (int a = 0; a < entrants.size(); a++) {
+			for (int b = a + 1; b < entrants.size(); b++) {
+				int n = openings.length * 2;
+				int wins = pairWins[a][b];
+				int draws = pairDraws[a][b];
+				double[] interval = wilson(pairPoints[a][b] / 2.0, n);
+				System.out.println(String.format(pairFormat, entrants.get(a).name + " vs " + entrants.get(b).name, n, wins,
+						draws, n - wins - draws, 50.0 * pairPoints[a][b] / n, 100 * interval[0], 100 * interval[1]));
+			}
+		}
+		System.out.println();
+		System.out.println(String.format("%-" + width + "s %6s %8s  %-16s %9s %12s", "Entrant", "games", "score",
+				"95% interval", "ms/move", "nodes/move"));
+		for (Entrant entrant : entrants) {
+			double[] interval = wilson(entrant.points / 2.0, entrant.games);
+			long moves = Math.max(1, entrant.moves);
+			System.out.println(String.format("%-" + width + "s %6d %7.1f%%  [%5.1f%%, %5.1f%%] %9.2f %12d", entrant.name,
+					entrant.games, 50.0 * entrant.points / entrant.games, 100 * interval[0], 100 * interval[1],
+					entrant.nanos / 1e6 / moves, entrant.nodes / moves));
+		}
+		System.out.println();
+		System.out.println(String.format("%d games in %.1f s, %s games per second", played, seconds, rate(played, start)));
+	}
+
+	/**
+	 * Play one game between two entrants from an opening, each with its own board
+	 * and table, as two separate bots would.
+	 */
+	static Result play(ArrayList<Entrant> entrants, int first, int second, int[] opening, long botNodes, long seed) {
+		Entrant[] sides = { entrants.get(first), entrants.get(second) };
+		Game[] bots = new Game[2];
+		for (int side = 0; side < 2; side++) {
+			Game bot = new Game();
+			bot.segmentScores = sides[side].segmentScores;
+			bot.start(true);
+			bot.botLevel = sides[side].level;
+			bot.botNodes = botNodes;
+			bot.random = new Random(seed * 2 + side);
+			bots[side] = bot;
+		}
+		for (int col : opening) {
+			for (Game bot : bots)
+				bot.placeToken(col);
+		}
+		Result result = new Result();
+		result.first = first;
+		result.second = second;
+		result.points = 1;
+		while (true) {
+			// the first entrant plays X, who moves on even plies
+			int side = bots[0].moves & 1;
+			Game bot = bots[side];
+			bot.nodes = 0;
+			long start = System.nanoTime();
+			int col = bot.chooseBotMove();
+			result.nanos[side] += System.nanoTime() - start;
+			result.moves[side]++;
+			result.nodes[side] += bot.nodes;
+			for (Game each : bots)
+				each.placeToken(col);
+			if (bot.isWin(col)) {
+				result.points = side == 0 ? 2 : 0;
+				return result;
+			}
+			if (bot.isTie())
+				return result;
+		}
+	}
+
+	/**
+	 * Distinct random openings that do not end the game.
+	 */
+	static int[][] openings(int count, int plies, long seed) {
+		Random random = new Random(seed);
+		HashSet<String> seen = new HashSet<String>();
+		ArrayList<int[]> openings = new ArrayList<int[]>();
+		// there may be fewer distinct openings than asked for
+		for (int attempt = 0; openings.size() < count && attempt < count * 100; attempt++) {
+			Game game = new Game();
+			game.start(true);
+			game.random = random;
+			int[] opening = new int[plies];
+			StringBuilder key = new StringBuilder();
+			boolean over = false;
+			for (int i = 0; i < plies && !over; i++) {
+				int col = game.getRandomMove();
+				game.placeToken(col);
+				opening[i] = col;
+				key.append(col + 1);
+				over = game.isWin(col) || game.isTie();
+			}
+			if (!over && seen.add(key.toString()))
+				openings.add(opening);
+		}
+		return openings.toArray(new int[0][]);
+	}
+
+	/**
+	 * Window scores of a weight set, the default table itself for the default weights
+	 * so that the default entrant evaluates exactly like the server's bot.
+	 */
+	static int[][] buildScores(int[] weights) {
+		for (int count = 1; count <= 3; count++) {
+			if (Game.SEGMENT_SCORES[count][0] != weights[count - 1] || Game.SEGMENT_SCORES[0][count] != -weights[count - 1])
+				return Game.buildSegmentScores(weights);
+		}
+		return Game.SEGMENT_SCORES;
+	}
+
+	/**
+	 * Wilson score interval of a proportion at 95% confidence.
+	 * @param successes points scored, a draw counting 1/2
+	 * @param n games played
+	 */
+	static double[] wilson(double successes, int n) {
+		if (n == 0)
+			return new double[] { 0, 1 };
+		double p = successes / n;
+		double z2 = Z * Z;
+		double center = (p + z2 / (2 * n)) / (1 + z2 / n);
+		double half = Z * Math.sqrt(p * (1 - p) / n + z2 / (4.0 * n * n)) / (1 + z2 / n);
+		return new double[] { Math.max(0, center - half), Math.min(1, center + half) };
+	}
+
+	private static String rate(int games, long start) {
+		return String.format("%.1f", games * 1e9 / (System.nanoTime() - start));
+	}
+}
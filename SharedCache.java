@@ -0,0 +1,148 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* The SharedCache class keeps search results that every bot game of the server
+* shares, so that a position one game searched deep enough is not searched again
+* by the next game reaching it. Only results at least MIN_DEPTH moves deep are
+* kept: shallower ones are cheaper to search again than to share.
+*
+* A position and its mirror image share one entry, stored under the smaller of the
+* two keys, with the best move mirrored back for the position asked about.
+*
+* Reads and writes take no lock. An entry is two longs, the key xor the data and the
+* data, so an entry torn by two games writing at once no longer matches its key and
+* reads as missing. Positions hash to buckets of two entries: the first keeps the
+* deepest result, unless it is from an older epoch of EPOCH_NANOS, and the second
+* takes every result the first does not.
+*/
+
+public class SharedCache {
+	static final int MIN_DEPTH = 4;
+	static final int ENTRY_BYTES = 16;
+	static final long EPOCH_NANOS = 30 * 1000000000L;
+	static final long START = System.nanoTime();
+
+	// the server's cache, none when null
+	static SharedCache cache;
+
+	// per entry: key ^ data, then data
+	final AtomicLongArray slots;
+	final int mask; // of the bucket index
+	final LongAdder probes = new LongAdder();
+	final LongAdder hits = new LongAdder();
+	final LongAdder used = new LongAdder(); // hits whose score spared a search
+	final LongAdder stores = new LongAdder();
+	final LongAdder evictions = new LongAdder(); // entries replaced by another position
+
+	SharedCache(int buckets) {
+		slots = new AtomicLongArray(buckets * 4);
+		mask = buckets - 1;
+	}
+
+	/**
+	 * Create the server's cache. Call once at server start.
+	 * @param megabytes memory of the cache, rounded down to a power of two entries, none when 0
+	 */
+	static void configure(int megabytes) {
+		if (megabytes <= 0) {
+			cache = null;
+			return;
+		}
+		long entries = (long) megabytes * 1024 * 1024 / ENTRY_BYTES;
+		cache = new SharedCache((int) Long.highestOneBit(Math.max(2, Math.min(entries, 1 << 28)) / 2));
+	}
+
+	/**
+	 * Find the entry of a position or its mirror image.
+	 * @return the packed entry, or 0 if neither is stored
+	 */
+	long probe(long key) {
+		probes.increment();
+		long canonical = Math.min(key, mirror(key));
+		int base = index(canonical);
+		for (int i = base; i < base + 4; i += 2) {
+			long data = slots.getOpaque(i + 1);
+			if (data != 0 && (slots.getOpaque(i) ^ data) == canonical) {
+				hits.increment();
+				return canonical == key ? data : mirrorMove(data);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Store a search result. It takes the bucket's first entry if it is at least as
+	 * deep as the result there, or that result is of the same position or of an older
+	 * epoch, and the second entry otherwise.
+	 */
+	void store(long key, int depth, int bound, int move, int score) {
+		long canonical = Math.min(key, mirror(key));
+		long epoch = epoch();
+		long data = (score & 0xFFFFFFFFL) | (long) depth << 32 | (long) bound << 40 | (long) (move + 1) << 44
+				| epoch << 48;
+		if (canonical != key)
+			data = mirrorMove(data);
+		int target = index(canonical);
+		long deep = slots.getOpaque(target + 1);
+		if (deep != 0 && (slots.getOpaque(target) ^ deep) != canonical && depth < depth(deep) && deep >>> 48 == epoch)
+			target += 2;
+		long old = slots.getOpaque(target + 1);
+		if (old != 0 && (slots.getOpaque(target) ^ old) != canonical)
+			evictions.increment();
+		slots.setOpaque(target, canonical ^ data);
+		slots.setOpaque(target + 1, data);
+		stores.increment();
+	}
+
+	static int depth(long entry) {
+		return (int) (entry >>> 32) & 0xFF;
+	}
+
+	static int bound(long entry) {
+		return (int) (entry >>> 40) & 0xF;
+	}
+
+	static int move(long entry) {
+		return ((int) (entry >>> 44) & 0xF) - 1;
+	}
+
+	static int score(long entry) {
+		return (int) entry;
+	}
+
+	/**
+	 * Fraction of probes that found their position.
+	 */
+	double hitRate() {
+		long count = probes.sum();
+		return count == 0 ? 0 : (double) hits.sum() / count;
+	}
+
+	/**
+	 * Key of the mirror image of a position: the columns in reverse order.
+	 */
+	static long mirror(long key) {
+		long mirrored = 0;
+		long column = (1L << Game.STRIDE) - 1;
+		for (int col = 0; col < Game.COLS; col++)
+			mirrored |= (key >>> col * Game.STRIDE & column) << (Game.COLS - 1 - col) * Game.STRIDE;
+		return mirrored;
+	}
+
+	private static long mirrorMove(long entry) {
+		int move = move(entry);
+		if (move < 0)
+			return entry;
+		return entry & ~(0xFL << 44) | (long) (Game.COLS - move) << 44;
+	}
+
+	private static long epoch() {
+		return (System.nanoTime() - START) / EPOCH_NANOS & 0xFF;
+	}
+
+	// first slot of the position's bucket
+	private int index(long key) {
+		return ((int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask) * 4;
+	}
+}
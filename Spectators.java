@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+* The Spectators class lets clients watch live games. A game is listed once its
+* players are ready; a client that picks mode 3 gets the list, picks a game by its
+* number and from then on only receives that game's boards.
+*
+* Every change of a watched game is encoded once, for text and binary clients,
+* while the game is locked. The bot searches on a copy of the board, so the board
+* read under the lock only holds moves that were played. The players' threads hand it to the spectators after
+* releasing the lock, and each spectator sends it on its own thread or event loop.
+* A spectator keeps only the newest board it has not sent yet: one that reads
+* slower than the game moves skips to the latest board, so it never holds up the
+* players nor makes the server queue boards for it.
+*/
+
+public class Spectators {
+	static final int MAX_LISTED = 20;
+
+	// games that can be watched, by the number spectators pick them with
+	static final ConcurrentHashMap<Integer, Game> games = new ConcurrentHashMap<Integer, Game>();
+	private static final AtomicInteger lastId = new AtomicInteger();
+
+	static final AtomicInteger watching = new AtomicInteger(); // spectators over every game
+	static final LongAdder skipped = new LongAdder(); // boards spectators skipped for a newer one
+
+	final Game game;
+	final int id;
+	final CopyOnWriteArrayList<Watcher> watchers = new CopyOnWriteArrayList<Watcher>();
+	private long updates; // guarded by game.lock
+	private volatile Update latest; // the newest update, set while holding game.lock
+
+	private Spectators(Game initGame, int initId) {
+		game = initGame;
+		id = initId;
+	}
+
+	/**
+	 * List a game whose players are ready, so that it can be watched.
+	 */
+	static void list(Game game) {
+		int id = lastId.incrementAndGet();
+		game.spectators = new Spectators(game, id);
+		games.put(id, game);
+	}
+
+	/**
+	 * Take a game off the list once its owner's connection closed, and end it for its
+	 * spectators if it did not end on the board.
+	 */
+	static void gameEnded(Game game) {
+		Spectators spectators = game.spectators;
+		if (spectators == null)
+			return;
+		games.remove(spectators.id);
+		game.lock.lock();
+		try {
+			if (!game.endGame && !spectators.watchers.isEmpty())
+				spectators.publish(game.boardBytes(), "The game was left unfinished.\n", true);
+		} finally {
+			game.lock.unlock();
+		}
+		fanOut(game);
+	}
+
+	/**
+	 * Encode the board of a game for its spectators, if it has any. Call while holding
+	 * the game's lock, right after a move, then fanOut once the lock is released.
+	 * @param board the board as Game.boardBytes encodes it
+	 */
+	static void moved(Game game, byte[] board) {
+		Spectators spectators = game.spectators;
+		if (spectators == null || spectators.watchers.isEmpty())
+			return;
+		String message;
+		boolean last = true;
+		if (game.isWin(game.history[game.moves - 1])) {
+			message = spectators.nameOf(game.moves % 2 == 1) + " wins!\n";
+		} else if (game.isTie()) {
+			message = "It's a tie!\n";
+		} else {
+			message = spectators.nameOf(game.moves % 2 == 0) + " to move\n";
+			last = false;
+		}
+		spectators.publish(board, message, last);
+	}
+
+	/**
+	 * Hand the latest update of a game to each of its spectators. Call without holding
+	 * the game's lock; each spectator sends it on its own thread or event loop.
+	 */
+	static void fanOut(Game game) {
+		Spectators spectators = game.spectators;
+		if (spectators == null)
+			return;
+		Update update = spectators.latest;
+		if (update == null)
+			return;
+		for (Watcher watcher : spectators.watchers)
+			watcher.offer(update);
+	}
+
+	/**
+	 * Send the list of games to watch, strongest bots first, then the newest games.
+	 * @return false if there is no game to watch
+	 */
+	static boolean sendList(Player player) {
+		ArrayList<Game> list = new ArrayList<Game>(games.values());
+		if (list.isEmpty()) {
+			player.send("There are no games to watch right now.\n");
+			return false;
+		}
+		list.sort((a, b) -> a.botLevel != b.botLevel ? b.botLevel - a.botLevel : b.spectators.id - a.spectators.id);
+		player.send("Games you can watch:\n");
+		for (int i = 0; i < list.size() && i < MAX_LISTED; i++) {
+			Game game = list.get(i);
+			Spectators spectators = game.spectators;
+			int moves;
+			game.lock.lock();
+			try {
+				moves = game.moves;
+			} finally {
+				game.lock.unlock();
+			}
+			player.send(spectators.id + ": " + spectators.nameOf(true) + " vs " + spectators.nameOf(false) + " on "
+					+ game.variant + ", " + moves + " moves, " + spectators.watchers.size() + " watching\n");
+		}
+		player.send(Player.PICK_GAME);
+		return true;
+	}
+
+	/**
+	 * Let a client watch the game it picked from the list, and send it the board.
+	 * @param line the number of the game the client sent
+	 * @return the client's watcher, or null if there is no such game to watch
+	 */
+	static Watcher watch(Player player, String line) {
+		Game game = null;
+		try {
+			game = games.get(Integer.parseInt(line.trim()));
+		} catch (NumberFormatException e) {
+			// not a game on the list
+		}
+		if (game == null) {
+			player.send("That game is not on the list anymore.\n");
+			return null;
+		}
+		Watcher watcher = new Watcher(player, game);
+		Spectators spectators = game.spectators;
+		game.lock.lock();
+		try {
+			if (game.endGame || games.get(spectators.id) != game) {
+				player.send("That game is over.\n");
+				return null;
+			}
+			player.send("Watching " + spectators.nameOf(true) + " (X) vs " + spectators.nameOf(false) + " (O)\n");
+			spectators.watchers.add(watcher);
+			watching.incrementAndGet();
+			// start the newcomer from the current board; the others already have it
+			spectators.publish(game.boardBytes(), spectators.nameOf(game.moves % 2 == 0) + " to move\n", false);
+			watcher.offer(spectators.latest);
+		} finally {
+			game.lock.unlock();
+		}
+		return watcher;
+	}
+
+	/**
+	 * Name of the player of X, the first to move, or of O.
+	 */
+	private String nameOf(boolean x) {
+		if (x)
+			return game.player1.name;
+		return game.botEnabled ? "Connecto-bot level " + game.botLevel : game.player2.name;
+	}
+
+	/**
+	 * Encode the board and a message once for text clients and once for binary ones.
+	 * @param last true if the game is over after this update
+	 */
+	private void publish(byte[] board, String message, boolean last) {
+		byte[] text = concat(board, message.getBytes(StandardCharsets.ISO_8859_1),
+				last ? Player.END_GAME.getBytes(StandardCharsets.ISO_8859_1) : new byte[0]);
+		byte[] binary = concat(BinaryProtocol.encodeBoard(game),
+				BinaryProtocol.encodeMessage(message), last ? BinaryProtocol.encodeMessage(Player.END_GAME) : new byte[0]);
+		latest = new Update(++updates, text, binary, last);
+	}
+
+	private static byte[] concat(byte[] a, byte[] b, byte[] c) {
+		byte[] all = new byte[a.length + b.length + c.length];
+		System.arraycopy(a, 0, all, 0, a.length);
+		System.arraycopy(b, 0, all, a.length, b.length);
+		System.arraycopy(c, 0, all, a.length + b.length, c.length);
+		return all;
+	}
+
+	/**
+	 * The board of a game after a change, encoded for both protocols. Shared by every
+	 * spectator, so it must not change.
+	 */
+	static class Update {
+		final long number;
+		final byte[] text;
+		final byte[] binary;
+		final boolean last;
+
+		Update(long initNumber, byte[] initText, byte[] initBinary, boolean initLast) {
+			number = initNumber;
+			text = initText;
+			binary = initBinary;
+			last = initLast;
+		}
+	}
+
+	/**
+	 * One spectator of a game: its connection, and the newest update it has not sent.
+	 * A thread-mode spectator sends from its own thread in run; an NIO one from its
+	 * event loop, one update at a time, the next once the connection sent the last.
+	 */
+	static class Watcher {
+		final Player player; // the spectator's connection; never a player of the game
+		final Game game;
+		final AtomicReference<Update> pending = new AtomicReference<Update>();
+		private final Thread thread; // the thread that sends, null on NIO
+		private long sent; // number of the last update sent
+		private boolean scheduled; // guarded by this: a send is queued on the event loop
+		private boolean left;
+
+		Watcher(Player initPlayer, Game initGame) {
+			player = initPlayer;
+			game = initGame;
+			thread = player.connection == null ? Thread.currentThread() : null;
+		}
+
+		/**
+		 * Make an update the next one to send, in place of an older one not sent yet.
+		 * Returns at once, whatever the spectator's connection is doing.
+		 */
+		void offer(Update update) {
+			Update old = pending.getAndAccumulate(update, (a, b) -> a != null && a.number >= b.number ? a : b);
+			if (old == update || (old != null && old.number >= update.number))
+				return;
+			if (old != null)
+				skipped.increment();
+			if (thread != null) {
+				LockSupport.unpark(thread);
+				return;
+			}
+			synchronized (this) {
+				if (scheduled)
+					return;
+				scheduled = true;
+			}
+			player.connection.loop.execute(this::sendNext);
+		}
+
+		/**
+		 * Send updates until the game is over for this spectator. Runs on the spectator's
+		 * own thread in thread mode; a slow socket only holds up this thread.
+		 */
+		void run() throws IOException {
+			try {
+				while (true) {
+					Update update;
+					while ((update = pending.getAndSet(null)) == null)
+						LockSupport.park(this);
+					if (update.number <= sent)
+						continue;
+					send(update);
+					if (update.last)
+						break;
+				}
+			} finally {
+				leave();
+			}
+			player.closeConnection();
+		}
+
+		/**
+		 * Send the pending update, unless the connection still has the last one to send:
+		 * then NioSession.onDrained calls again once it is sent. Runs on the event loop.
+		 */
+		void sendNext() {
+			synchronized (this) {
+				scheduled = false;
+			}
+			if (left || !player.connection.drained())
+				return;
+			Update update = pending.getAndSet(null);
+			if (update == null || update.number <= sent)
+				return;
+			try {
+				send(update);
+				if (update.last) {
+					leave();
+					player.closeConnection();
+				}
+			} catch (IOException e) {
+				System.out.println(e);
+				leave();
+			}
+		}
+
+		private void send(Update update) throws IOException {
+			sent = update.number;
+			player.outToClient.add(player.binary ? update.binary : update.text);
+			player.flush();
+		}
+
+		/**
+		 * Stop watching, e.g. because the spectator disconnected.
+		 */
+		void leave() {
+			if (left)
+				return;
+			left = true;
+			if (game.spectators.watchers.remove(this))
+				watching.decrementAndGet();
+		}
+	}
+}
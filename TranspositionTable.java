@@ -0,0 +1,147 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* The TranspositionTable class caches search results of positions that the bot
+* search reaches through different move orders. It has a fixed number of entries,
+* chosen once when the server starts, and keeps deeper results over shallower ones.
+*
+* A bot game does not keep a table of its own: it leases one from a server-wide
+* pool for its search, hands it to its Ponder if the bot thinks on the player's
+* time, and returns it once the bot has moved. The server therefore holds at most
+* one table per bot search and per pondering game running at once, however many
+* bot games are open.
+*/
+
+public class TranspositionTable {
+	static final byte EXACT = 1;
+	static final byte LOWER = 2; // score is at least the stored value
+	static final byte UPPER = 3; // score is at most the stored value
+	static final int ENTRY_BYTES = 8 + 4 + 4;
+
+	// number of entries of every table, set once at server start
+	static int size = 1 << 14;
+
+	// tables not leased to a search, and every table created for the pool
+	private static final ConcurrentLinkedQueue<TranspositionTable> pool = new ConcurrentLinkedQueue<TranspositionTable>();
+	static final AtomicInteger pooled = new AtomicInteger();
+
+	long[] keys;
+	int[] scores;
+	// depth, bound, best move and generation packed as 8 bits each
+	int[] info;
+	int mask;
+	int generation;
+	// lookups of the current search and those that found their position, which Metrics adds up
+	long probes;
+	long hits;
+	// board and window scores of the entries; a table leased for another one is cleared
+	private Variant variant;
+	private int[][] segmentScores;
+
+	TranspositionTable() {
+		keys = new long[size];
+		scores = new int[size];
+		info = new int[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Set the memory used by each table. Only tables created afterwards are affected.
+	 * @param kilobytes memory cap per table, rounded down to a power of two entries
+	 */
+	static void configure(int kilobytes) {
+		long entries = Math.max(1, (long) kilobytes * 1024 / ENTRY_BYTES);
+		size = (int) Long.highestOneBit(Math.min(entries, 1 << 30));
+	}
+
+	/**
+	 * Lease a table for a search of a game, from the pool or new if every pooled table
+	 * is in use. Entries stored for another board or other window scores are cleared;
+	 * those of another game on the same board are kept, since they hold for any game.
+	 */
+	static TranspositionTable lease(Game game) {
+		TranspositionTable table = pool.poll();
+		if (table == null) {
+			table = new TranspositionTable();
+			pooled.incrementAndGet();
+		} else if (table.variant != game.variant || table.segmentScores != game.segmentScores) {
+			table.clear();
+		}
+		table.variant = game.variant;
+		table.segmentScores = game.segmentScores;
+		return table;
+	}
+
+	/**
+	 * Return a leased table to the pool. It must not be used afterwards.
+	 */
+	static void release(TranspositionTable table) {
+		pool.add(table);
+	}
+
+	/**
+	 * Start a new search. Entries of older searches can be replaced by any new entry.
+	 */
+	void newSearch() {
+		generation = (generation + 1) & 0xFF;
+		probes = 0;
+		hits = 0;
+	}
+
+	/**
+	 * Forget every entry, e.g. to time searches that start from an empty table.
+	 */
+	void clear() {
+		Arrays.fill(info, 0);
+	}
+
+	/**
+	 * Find the slot of a position.
+	 * @return the slot index, or -1 if the position is not stored
+	 */
+	int probe(long key) {
+		probes++;
+		int slot = index(key);
+		if (keys[slot] != key || info[slot] == 0) {
+			return -1;
+		}
+		hits++;
+		return slot;
+	}
+
+	int depth(int slot) {
+		return info[slot] & 0xFF;
+	}
+
+	int bound(int slot) {
+		return (info[slot] >>> 8) & 0xFF;
+	}
+
+	int move(int slot) {
+		return ((info[slot] >>> 16) & 0xFF) - 1;
+	}
+
+	int score(int slot) {
+		return scores[slot];
+	}
+
+	/**
+	 * Store a search result, unless the slot holds a deeper result of the current search.
+	 */
+	void store(long key, int depth, int bound, int move, int score) {
+		int slot = index(key);
+		int old = info[slot];
+		if (old != 0 && (old >>> 24) == generation && (old & 0xFF) > depth && keys[slot] != key) {
+			return;
+		}
+		keys[slot] = key;
+		scores[slot] = score;
+		info[slot] = depth | bound << 8 | (move + 1) << 16 | generation << 24;
+	}
+
+	private int index(long key) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+	}
+}
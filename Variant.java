@@ -0,0 +1,283 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+* The Variant class describes a board the game can be played on: its rows, its
+* columns, and how many tokens in a row win. It holds everything the engine
+* precomputes for a board, built once per variant and shared by all its games:
+* the bitboard masks, the windows of K cells the evaluation counts, the order
+* moves are searched in and the empty board sent to text clients.
+*
+* The bitboards of Game keep ROWS + 1 bits per column in a long. Boards with
+* more than 64 such bits, like 8x9, are wide: the columns that do not fit go
+* into a second long, which is empty on every other board. Columns are limited
+* to 9 so that a move is one digit.
+*/
+
+public class Variant {
+	static final int MAX_COLS = 9;
+
+	// every variant used so far, by name, so that games of a variant share its tables
+	private static final ConcurrentHashMap<String, Variant> variants = new ConcurrentHashMap<String, Variant>();
+
+	// the classic board: 6 rows, 7 columns, four in a row
+	static final Variant STANDARD = get(6, 7, 4);
+
+	final int rows;
+	final int cols;
+	final int k; // tokens in a row that win
+	final String name;
+	// Each column takes rows + 1 bits of a long, bottom cell first; the extra bit
+	// on top of every column stays empty so that shifts never wrap into the next column.
+	final int stride;
+	final int cells;
+	final int lowCols; // columns held by the first long; the others go into the second
+	final boolean wide; // true if the board needs the second long
+	final int highBase; // bit index of the first cell of the second long
+	final long fullBoard; // the first long when its columns are full
+	final long fullBoardHigh; // the second long when its columns are full
+	final int[] centerFirst; // columns from the center outwards, the left one first on a tie
+	final int[][] windows; // every line of k cells, as bit indexes
+	final int[][] cellWindows; // for every bit index, the windows through that cell
+	final int[][] segmentScores; // score of a window by its X and O counts
+	// the empty board as sent to text clients; each row is boardLine bytes
+	final byte[] boardTemplate;
+	final int boardLine;
+
+	// each pool thread searches on its own copy of the board with its own table
+	final ThreadLocal<Game> workers = ThreadLocal.withInitial(() -> Game.newWorker(this));
+	// one solver per searching thread; its stored bounds only hold for this board
+	final ThreadLocal<EndgameSolver> solvers = ThreadLocal.withInitial(() -> new EndgameSolver(this));
+
+	private Variant(int initRows, int initCols, int initK) {
+		rows = initRows;
+		cols = initCols;
+		k = initK;
+		name = rows + "x" + cols + "x" + k;
+		stride = rows + 1;
+		cells = rows * cols;
+		lowCols = Math.min(cols, 64 / stride);
+		wide = lowCols < cols;
+		highBase = lowCols * stride;
+		long full = 0;
+		long fullHigh = 0;
+		for (int col = 0; col < cols; col++) {
+			if (col < lowCols)
+				full |= columnMask(col);
+			else
+				fullHigh |= columnMask(col);
+		}
+		fullBoard = full;
+		fullBoardHigh = fullHigh;
+		centerFirst = buildCenterFirst();
+		windows = buildWindows();
+		cellWindows = buildCellWindows();
+		segmentScores = buildSegmentScores();
+		boardTemplate = buildBoardTemplate();
+		boardLine = 7 + 4 * cols + 1;
+	}
+
+	/**
+	 * The variant of a board, with its tables built on first use.
+	 * @throws IllegalArgumentException if the board is not supported
+	 */
+	static Variant get(int rows, int cols, int k) {
+		String error = check(rows, cols, k);
+		if (error != null)
+			throw new IllegalArgumentException(error);
+		return variants.computeIfAbsent(rows + "x" + cols + "x" + k, name -> new Variant(rows, cols, k));
+	}
+
+	/**
+	 * The variant named like "7x8x4" (rows x columns x tokens in a row), or "7x8" for four in a row.
+	 * @throws IllegalArgumentException if the name is not a supported board
+	 */
+	static Variant parse(String name) {
+		String[] parts = name.trim().toLowerCase().split("x");
+		if (parts.length < 2 || parts.length > 3)
+			throw new IllegalArgumentException("Board " + name + " is not rows x columns x in a row, e.g. 7x8x4");
+		try {
+			return get(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), parts.length == 3 ? Integer.parseInt(parts[2]) : 4);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Board " + name + " is not rows x columns x in a row, e.g. 7x8x4");
+		}
+	}
+
+	/**
+	 * @return null if the board is supported, otherwise why not
+	 */
+	static String check(int rows, int cols, int k) {
+		if (rows < 4 || cols < 4 || cols > MAX_COLS)
+			return "Boards have 4 or more rows and 4 to " + MAX_COLS + " columns";
+		int lowCols = 64 / (rows + 1);
+		if (lowCols < cols && (cols - lowCols) * (rows + 1) > 64)
+			return "Boards fit in two 64-bit words with rows + 1 bits per column: 11x9 fits, 12x9 does not";
+		if (k < 3 || k > Math.max(rows, cols))
+			return "Lines to win are 3 tokens or more, and fit on the board";
+		return null;
+	}
+
+	/**
+	 * The first bit of a column in the long that holds it.
+	 */
+	int shift(int col) {
+		return (col < lowCols ? col : col - lowCols) * stride;
+	}
+
+	long bottomMask(int col) {
+		return 1L << shift(col);
+	}
+
+	long topMask(int col) {
+		return 1L << (rows - 1 + shift(col));
+	}
+
+	long columnMask(int col) {
+		return ((1L << rows) - 1) << shift(col);
+	}
+
+	/**
+	 * Check a bitboard for k tokens in a row in any direction. Only boards that
+	 * are not wide fit in the bitboard; Game counts the complete windows of wide ones.
+	 */
+	boolean isAlignment(long tokens) {
+		if (k == 4) {
+			// horizontal
+			long m = tokens & (tokens >> stride);
+			if ((m & (m >> (2 * stride))) != 0)
+				return true;
+
+			// diagonal going down to the right
+			m = tokens & (tokens >> (stride - 1));
+			if ((m & (m >> (2 * (stride - 1)))) != 0)
+				return true;
+
+			// diagonal going up to the right
+			m = tokens & (tokens >> (stride + 1));
+			if ((m & (m >> (2 * (stride + 1)))) != 0)
+				return true;
+
+			// vertical
+			m = tokens & (tokens >> 1);
+			return (m & (m >> 2)) != 0;
+		}
+		return hasRun(tokens, stride) || hasRun(tokens, stride - 1) || hasRun(tokens, stride + 1) || hasRun(tokens, 1);
+	}
+
+	/**
+	 * Check for k tokens in a row along one direction, doubling the length of the
+	 * runs found with each shift, then joining two overlapping runs to make k.
+	 */
+	private boolean hasRun(long tokens, int shift) {
+		long m = tokens;
+		int run = 1;
+		while (run * 2 <= k) {
+			m &= m >> (run * shift);
+			run *= 2;
+		}
+		if (run < k)
+			m &= m >> ((k - run) * shift);
+		return m != 0;
+	}
+
+	private int[] buildCenterFirst() {
+		int[] order = new int[cols];
+		int count = 0;
+		for (int distance = 0; distance < cols; distance++) {
+			// twice the distance to the center, so that boards with an even number of columns have whole distances
+			for (int col = 0; col < cols; col++) {
+				if (Math.abs(2 * col - (cols - 1)) == distance)
+					order[count++] = col;
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * List every window of k cells of the board as the bit indexes of its cells.
+	 */
+	private int[][] buildWindows() {
+		ArrayList<int[]> list = new ArrayList<int[]>();
+		// column, row, horizontal, and both diagonal directions as (col, row) steps
+		int[][] directions = { { 0, 1 }, { 1, 0 }, { 1, 1 }, { 1, -1 } };
+		for (int[] dir : directions) {
+			for (int col = 0; col < cols; col++) {
+				for (int row = 0; row < rows; row++) {
+					int endCol = col + (k - 1) * dir[0];
+					int endRow = row + (k - 1) * dir[1];
+					if (endCol >= cols || endRow < 0 || endRow >= rows)
+						continue;
+					int[] window = new int[k];
+					for (int i = 0; i < k; i++) {
+						window[i] = (col + i * dir[0]) * stride + row + i * dir[1];
+					}
+					list.add(window);
+				}
+			}
+		}
+		return list.toArray(new int[0][]);
+	}
+
+	/**
+	 * For every bit index of the board, list the windows containing that cell.
+	 */
+	private int[][] buildCellWindows() {
+		int[] counts = new int[cols * stride];
+		for (int[] window : windows) {
+			for (int cell : window)
+				counts[cell]++;
+		}
+		int[][] lists = new int[cols * stride][];
+		for (int cell = 0; cell < lists.length; cell++) {
+			lists[cell] = new int[counts[cell]];
+			counts[cell] = 0;
+		}
+		for (int w = 0; w < windows.length; w++) {
+			for (int cell : windows[w])
+				lists[cell][counts[cell]++] = w;
+		}
+		return lists;
+	}
+
+	/**
+	 * Score of every window by its X and O counts: 500 for a side one token short
+	 * of k alone in the window, 100 for two short, 10 for three and 1 for more, as
+	 * Game.segmentScore scores four in a row. Windows holding both sides score 0,
+	 * and so do complete ones, which Game counts in xFours and oFours instead.
+	 */
+	private int[][] buildSegmentScores() {
+		int[][] scores = new int[k + 1][k + 1];
+		int[] weights = { 500, 100, 10 };
+		for (int count = 1; count < k; count++) {
+			int missing = k - count;
+			int weight = missing <= weights.length ? weights[missing - 1] : 1;
+			scores[count][0] = weight;
+			scores[0][count] = -weight;
+		}
+		return scores;
+	}
+
+	private byte[] buildBoardTemplate() {
+		StringBuilder str = new StringBuilder();
+		for (int i = 0; i < rows; i++) {
+			str.append("     | ");
+			for (int j = 0; j < cols; j++)
+				str.append("  | ");
+			str.append("\n");
+		}
+		str.append("     +");
+		for (int j = 0; j < cols; j++)
+			str.append("---+");
+		str.append("\n      ");
+		for (int j = 0; j < cols; j++)
+			str.append(" ").append(j + 1).append("  ");
+		str.append("\n");
+		return str.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}